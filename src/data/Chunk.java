@@ -19,20 +19,25 @@ package data;
 import com.google.gson.annotations.Expose;
 
 import java.util.ArrayList;
+import java.util.BitSet;
 import java.util.List;
 
 public class Chunk {
     public static final String UNKNOWN_CHECKSUM = null;
     public static final int CHUNK_SIZE = 1024 * 1024 * 64; // 64 MByte
+    public static final int BLOCK_SIZE = 1024 * 256; // 256 kByte, unit of transfer within a chunk
 
     @Expose private String checksum;
     @Expose private long offset;
     @Expose private long size;
+    @Expose private String treeRoot; // hash tree root over the block checksums
 
     private String fileId;
     private boolean isLocal = false;
     private boolean downloadActive = false;
     private long waitSince = -1;
+    private transient BitSet receivedBlocks; // blocks already written to the download file
+    private List<String> blockChecksums; // leaves of the hash tree, required to prove blocks to downloaders
 
     public Chunk() {
         // empty constructor required for GSON
@@ -142,10 +147,75 @@ public class Chunk {
         return chunks;
     }
 
+    public int getBlockCount() {
+        return (int) Math.ceil(size / (double) BLOCK_SIZE);
+    }
+
+    public long getBlockOffset(int block) {
+        return offset + (long) block * BLOCK_SIZE;
+    }
+
+    public long getBlockSize(int block) {
+        return Math.min(BLOCK_SIZE, size - (long) block * BLOCK_SIZE);
+    }
+
+    /**
+     * @param fromBlock first block to check
+     * @return index of the first block not received yet, starting at fromBlock, or -1 if there is none
+     */
+    synchronized public int nextMissingBlock(int fromBlock) {
+        int block = receivedBlocks == null ? fromBlock : receivedBlocks.nextClearBit(fromBlock);
+        return block < getBlockCount() ? block : -1;
+    }
+
+    synchronized public void setBlockReceived(int block) {
+        if (receivedBlocks == null) {
+            receivedBlocks = new BitSet(getBlockCount());
+        }
+        receivedBlocks.set(block);
+    }
+
+    synchronized public void clearBlockReceived(int block) {
+        if (receivedBlocks != null) {
+            receivedBlocks.clear(block);
+        }
+    }
+
+    synchronized public int getReceivedBlockCount() {
+        return receivedBlocks == null ? 0 : receivedBlocks.cardinality();
+    }
+
+    /**
+     * Forget all received blocks, e.g. if the chunk failed verification
+     */
+    synchronized public void clearReceivedBlocks() {
+        receivedBlocks = null;
+    }
+
     synchronized public boolean hasChecksum() {
         return checksum != null && ! checksum.equals("");
     }
 
+    synchronized public String getTreeRoot() {
+        return treeRoot;
+    }
+
+    synchronized public void setTreeRoot(String treeRoot) {
+        this.treeRoot = treeRoot;
+    }
+
+    synchronized public boolean hasTreeRoot() {
+        return treeRoot != null && ! treeRoot.equals("");
+    }
+
+    synchronized public List<String> getBlockChecksums() {
+        return blockChecksums;
+    }
+
+    synchronized public void setBlockChecksums(List<String> blockChecksums) {
+        this.blockChecksums = blockChecksums;
+    }
+
     synchronized public void requestAnswered() {
         waitSince = -1;
     }
@@ -0,0 +1,85 @@
+/*
+ * Copyright (c) 2018. Markus Monz
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package data;
+
+import com.google.gson.annotations.Expose;
+
+/**
+ * How a file was cut into chunks, recorded in the file metadata. Nodes do not cut
+ * files of other nodes, but a new version of a file gets cut the same way.
+ */
+public class Chunking {
+    public enum Method {
+        FIXED, // chunks of Chunk.CHUNK_SIZE
+        GEAR, // content defined chunks, see GearChunker
+    }
+
+    @Expose private Method method;
+    @Expose private long minSize;
+    @Expose private long avgSize;
+    @Expose private long maxSize;
+
+    public Chunking() {
+        // empty constructor required for GSON
+    }
+
+    private Chunking(Method method, long minSize, long avgSize, long maxSize) {
+        this.method = method;
+        this.minSize = minSize;
+        this.avgSize = avgSize;
+        this.maxSize = maxSize;
+    }
+
+    public static Chunking fixed() {
+        return new Chunking(Method.FIXED, Chunk.CHUNK_SIZE, Chunk.CHUNK_SIZE, Chunk.CHUNK_SIZE);
+    }
+
+    /**
+     * @throws IllegalArgumentException if the sizes are not ordered, or exceed the maximum chunk size
+     */
+    public static Chunking contentDefined(long minSize, long avgSize, long maxSize) {
+        if (minSize <= 0 || minSize > avgSize || avgSize > maxSize || maxSize > Integer.MAX_VALUE) {
+            throw new IllegalArgumentException(String.format("Invalid chunk sizes, min %d, avg %d, max %d", minSize, avgSize, maxSize));
+        }
+        return new Chunking(Method.GEAR, minSize, avgSize, maxSize);
+    }
+
+    public Method getMethod() {
+        return method == null ? Method.FIXED : method;
+    }
+
+    public boolean isContentDefined() {
+        return getMethod() == Method.GEAR;
+    }
+
+    public long getMinSize() {
+        return minSize;
+    }
+
+    public long getAvgSize() {
+        return avgSize;
+    }
+
+    public long getMaxSize() {
+        return maxSize;
+    }
+
+    @Override
+    public String toString() {
+        return isContentDefined() ? String.format("%s(%d/%d/%d)", method, minSize, avgSize, maxSize) : Method.FIXED.toString();
+    }
+}
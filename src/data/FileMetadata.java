@@ -21,40 +21,93 @@ import com.google.gson.annotations.Expose;
 import java.io.IOException;
 import java.nio.file.Files;
 import java.nio.file.Paths;
+import java.util.ArrayList;
 import java.util.List;
 import java.util.UUID;
 
 public class FileMetadata {
     @Expose private String fileId;
-    @Expose private long fileSize;
+    @Expose private volatile long fileSize;
     @Expose private String checksum;
     @Expose private String fileName;
     @Expose private List<Chunk> chunks;
     @Expose private String relativePath;
+    @Expose private String treeRoot; // hash tree root over the chunks' tree roots
+    @Expose private long version; // incremented by the origin on every modification of the file
+    @Expose private Chunking chunking;
 
     private String filePath;
+    private long lastModified; // modification time of the hashed content, only known by the origin
 
     public FileMetadata(String filePath) throws IOException {
-        this(UUID.randomUUID().toString(), filePath, "");
+        this(UUID.randomUUID().toString(), filePath, "", Chunking.fixed());
     }
 
     public FileMetadata(String filePath, String relativePath) throws IOException {
-        this(UUID.randomUUID().toString(), filePath, relativePath);
+        this(UUID.randomUUID().toString(), filePath, relativePath, Chunking.fixed());
     }
 
-    private FileMetadata(String fileId, String filePath, String relativePath) throws IOException {
+    /**
+     * @param chunking how to cut the file, content defined chunks are unknown until the file was read
+     */
+    public FileMetadata(String filePath, String relativePath, Chunking chunking) throws IOException {
+        this(UUID.randomUUID().toString(), filePath, relativePath, chunking);
+    }
+
+    private FileMetadata(String fileId, String filePath, String relativePath, Chunking chunking) throws IOException {
         this.fileId = fileId;
+        this.chunking = chunking;
         this.filePath = filePath;
         this.relativePath = relativePath;
         this.fileName = Paths.get(filePath).getFileName().toString();
         this.fileSize = Files.size(Paths.get(filePath));
-        this.chunks = Chunk.getChunks(fileId, fileSize);
+        this.lastModified = Files.getLastModifiedTime(Paths.get(filePath)).toMillis();
+        this.chunks = chunking.isContentDefined() ? new ArrayList<>() : Chunk.getChunks(fileId, fileSize);
+    }
+
+    public Chunking getChunking() {
+        return chunking == null ? Chunking.fixed() : chunking;
+    }
+
+    /**
+     * @return count of chunks of the whole file, chunks may not be known yet
+     */
+    synchronized public int getChunkCount() {
+        return getChunking().isContentDefined() ? chunks.size() : Chunk.getChunkCount(fileSize);
+    }
+
+    synchronized public long getVersion() {
+        return version;
+    }
+
+    synchronized public long getLastModified() {
+        return lastModified;
+    }
+
+    /**
+     * Replaces the content of the file by a newer version, the file checksum and tree root are unknown afterwards
+     * @param version version of the content
+     * @param fileSize size of the new content
+     * @param chunks chunks of the new content
+     * @param lastModified modification time of the new content, 0 if unknown
+     */
+    synchronized public void setVersion(long version, long fileSize, List<Chunk> chunks, long lastModified) {
+        this.version = version;
+        this.fileSize = fileSize;
+        this.chunks = chunks;
+        this.lastModified = lastModified;
+        this.checksum = null;
+        this.treeRoot = null;
     }
 
     synchronized public List<Chunk> getChunks() {
         return chunks;
     }
 
+    synchronized public void setChunks(List<Chunk> chunks) {
+        this.chunks = chunks;
+    }
+
     synchronized public boolean isChunkLocal(String checksum) {
         return chunks.stream()
             .filter(c -> c.getChecksum() != null && c.getChecksum().equals(checksum))
@@ -93,6 +146,14 @@ public class FileMetadata {
         return checksum != null && ! checksum.equals("");
     }
 
+    synchronized public String getTreeRoot() {
+        return treeRoot;
+    }
+
+    synchronized public void setTreeRoot(String treeRoot) {
+        this.treeRoot = treeRoot;
+    }
+
     public String getRelativePath() {
         return relativePath;
     }
@@ -0,0 +1,24 @@
+/*
+ * Copyright (c) 2018. Markus Monz
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package data;
+
+/**
+ * Download priority class of a file, files of a higher class get free download slots first
+ */
+public enum FilePriority {
+    HIGH, NORMAL, LOW
+}
@@ -22,13 +22,11 @@ import local.decl.Observable;
 import local.decl.Observer;
 import local.impl.ObserverCmd;
 import net.NetworkService;
-import net.data.Pair;
 import net.data.ReplicaNode;
 import ui.controller.ChunkDownloadProgressController;
 
 import java.util.*;
 import java.util.concurrent.CopyOnWriteArrayList;
-import java.util.function.Function;
 import java.util.stream.Collectors;
 
 public class SharedFile implements Observable<FileMetadata> {
@@ -39,6 +37,9 @@ public class SharedFile implements Observable<FileMetadata> {
 
     private List<Observer<FileMetadata>> observers = new CopyOnWriteArrayList<>(); // prevents "ConcurrentModificationException" http://stackoverflow.com/questions/19197579/java-observer-pattern-how-to-remove-observers-during-updatenotify-loop-itera
     private boolean downloadActive;
+    private FilePriority priority = FilePriority.NORMAL;
+    private boolean sequential; // download chunks in offset order, e.g. to play a video while downloading
+    private transient List<Chunk> movedChunks = new ArrayList<>(); // local chunks of the previous version, their bytes moved
 
     public SharedFile() {
         // empty constructor is required for GSON
@@ -76,9 +77,10 @@ public class SharedFile implements Observable<FileMetadata> {
 
     synchronized public boolean isLocal() {
         boolean isLocal;
-        int expectedChunkCount = Chunk.getChunkCount(metadata.getFileSize());
+        // chunk sizes vary with content defined chunking, the chunks have to cover the whole file
         int actualChunkCount = metadata.getChunks().size();
-        if (actualChunkCount > 0 && actualChunkCount == expectedChunkCount) {
+        long coveredSize = metadata.getChunks().stream().mapToLong(Chunk::getSize).sum();
+        if (actualChunkCount > 0 && coveredSize == metadata.getFileSize()) {
             isLocal = metadata.getChunks().stream().allMatch(Chunk::isLocal);
         } else {
             isLocal = false;
@@ -155,9 +157,23 @@ public class SharedFile implements Observable<FileMetadata> {
         return new ArrayList<>(replicaNodes.get(nodeId).getChunks());
     }
 
-    public Chunk getChunk(String chunkChecksum) {
+    /**
+     * @param offset chunk offset, the same content may appear at several offsets
+     * @param chunkChecksum chunk checksum
+     * @return the chunk, or null if the file has no such chunk
+     */
+    public Chunk getChunk(long offset, String chunkChecksum) {
+        return metadata.getChunks().stream()
+            .filter(c -> c.getOffset() == offset && c.getChecksum() != null && c.getChecksum().equals(chunkChecksum))
+            .findFirst().orElse(null);
+    }
+
+    /**
+     * @return a local chunk with the checksum, at any offset, or null if there is none
+     */
+    public Chunk getLocalChunk(String chunkChecksum) {
         return metadata.getChunks().stream()
-            .filter(c -> c.getChecksum() != null && c.getChecksum().equals(chunkChecksum))
+            .filter(c -> c.isLocal() && c.getChecksum() != null && c.getChecksum().equals(chunkChecksum))
             .findFirst().orElse(null);
     }
 
@@ -165,6 +181,17 @@ public class SharedFile implements Observable<FileMetadata> {
         return metadata.getFileSize();
     }
 
+    /**
+     * @return bytes of the file which are not written locally yet
+     */
+    synchronized public long getRemainingSize() {
+        long localSize = metadata.getChunks().stream()
+            .filter(Chunk::isLocal)
+            .mapToLong(Chunk::getSize)
+            .sum();
+        return Math.max(0, getFileSize() - localSize);
+    }
+
     synchronized public boolean activateDownload() {
         boolean success;
         if (downloadActive) {
@@ -191,53 +218,50 @@ public class SharedFile implements Observable<FileMetadata> {
         return downloadActive;
     }
 
-    synchronized public void removeReplicaNode(UUID nodeId) {
-        replicaNodes.remove(nodeId);
+    synchronized public FilePriority getPriority() {
+        return priority == null ? FilePriority.NORMAL : priority;
     }
 
-    private List<UUID> getNextDownloadNodes() {
-        // get nodes which share the chunks remaining for download
-        // sorted by available chunk count, ascending
-        // get random node within the 5 lowest number of available chunks
-        return getChunksToDownload().stream()
-            .flatMap(c -> getReplicaNodesByChunk(c.getChecksum()).stream())
-            .collect(Collectors.groupingBy(Function.identity(), Collectors.counting()))
-            .entrySet().stream()
-            .sorted(Map.Entry.comparingByValue())
-            .map(Map.Entry::getKey)
-            .collect(Collectors.toList());
+    synchronized public void setPriority(FilePriority priority) {
+        this.priority = priority;
     }
 
-    public Pair<UUID, Chunk> getNextChunkToDownload(int round) {
-        List<UUID> nodeIds = getNextDownloadNodes();
-        if (nodeIds.size() == 0) {
-            return null;
-        }
-        // chose node, round robin
-        UUID nodeId;
-        nodeId = nodeIds.get(round % nodeIds.size());
-
-        // convert chunksToDownload to checksum list
-        List<String> chunksToDownload = getChunksToDownload().stream()
-            .map(Chunk::getChecksum)
-            .collect(Collectors.toList());
+    synchronized public boolean isSequential() {
+        return sequential;
+    }
 
-        // randomly chose a chunk from this node which gets downloaded next
-        // this chunk must be out of the list of chunks to download
-        List<String> allNodeChunks = getChunksOfReplicaNode(nodeId);
-        allNodeChunks.retainAll(chunksToDownload);
-        Chunk chunk = null;
-        if (allNodeChunks.size() > 0) {
-            chunk = getChunk(allNodeChunks.get(new Random().nextInt(allNodeChunks.size())));
-        }
+    synchronized public void setSequential(boolean sequential) {
+        this.sequential = sequential;
+    }
 
-        return new Pair<>(nodeId, chunk);
+    synchronized public void removeReplicaNode(UUID nodeId) {
+        replicaNodes.remove(nodeId);
     }
 
     synchronized public void resetReplicaNodes() {
         replicaNodes.clear();
     }
 
+    /**
+     * @param movedChunks local chunks of the previous version, whose bytes appear at other offsets of the new version
+     */
+    synchronized public void setMovedChunks(List<Chunk> movedChunks) {
+        this.movedChunks = new ArrayList<>(movedChunks);
+    }
+
+    synchronized public boolean hasMovedChunks() {
+        return movedChunks != null && !movedChunks.isEmpty();
+    }
+
+    /**
+     * @return local chunks of the previous version whose bytes moved, they get relocated only once
+     */
+    synchronized public List<Chunk> takeMovedChunks() {
+        List<Chunk> moved = movedChunks == null ? new ArrayList<>() : movedChunks;
+        movedChunks = new ArrayList<>();
+        return moved;
+    }
+
     public List<String> getAllChunkChecksums() {
         return metadata.getChunks().stream().map(Chunk::getChecksum).collect(Collectors.toList());
     }
@@ -250,6 +274,13 @@ public class SharedFile implements Observable<FileMetadata> {
         observers.add(observer);
     }
 
+    /**
+     * @return true if an observer of the given type is registered
+     */
+    public boolean hasObserver(Class<?> type) {
+        return observers.stream().anyMatch(type::isInstance);
+    }
+
     @Override
     public void removeObserver(Observer observer) {
         observers.remove(observer);
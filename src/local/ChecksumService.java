@@ -17,17 +17,27 @@
 package local;
 
 import data.Chunk;
+import data.Chunking;
+import data.FileMetadata;
 import data.SharedFile;
+import local.impl.FileChecksumObserver;
+import local.impl.GearChunker;
+import local.impl.HashTree;
 
-import java.io.BufferedInputStream;
 import java.io.FileInputStream;
-import java.io.FileNotFoundException;
 import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.NoSuchFileException;
+import java.nio.file.Paths;
+import java.nio.file.StandardOpenOption;
 import java.security.MessageDigest;
 import java.security.NoSuchAlgorithmException;
 import java.util.ArrayList;
 import java.util.Collection;
 import java.util.List;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
 import java.util.concurrent.ExecutorService;
 import java.util.concurrent.Executors;
 import java.util.logging.Level;
@@ -38,13 +48,18 @@ public class ChecksumService {
     private static final SharedFileService SHARED_FILE_SERVICE = (SharedFileService) ServiceLocator.getInstance().getService(ServiceLocator.SHARED_FILE_SERVICE);
     private static final int MD5_LENGTH = 32;
     private static final int BUFFER_SIZE = 32*1024; // 32 kBytes
+    private static final int CUT_BUFFER_SIZE = 1024*1024; // 1 MByte
 
     private ExecutorService executor;
+    private ExecutorService verifier; // downloaded chunks, they do not wait for re-hashes of modified files
     private String checksumAlgorithm;
+    private Set<String> rehashing; // fileIds of modified files waiting for their re-hash
 
     public ChecksumService(String checksumAlgorithm) {
         this.executor = Executors.newSingleThreadExecutor();
+        this.verifier = Executors.newSingleThreadExecutor();
         this.checksumAlgorithm = checksumAlgorithm;
+        this.rehashing = ConcurrentHashMap.newKeySet();
     }
 
     public static String digestToString(byte[] digest) {
@@ -65,13 +80,17 @@ public class ChecksumService {
 
     private Runnable handleChunk(Chunk c) {
         return () -> {
-            // calculate checksum
-            String checksum = calculateChecksum(c);
+            // calculate checksum, and the block checksums in the same pass
+            List<String> blockChecksums = new ArrayList<>(c.getBlockCount());
+            String checksum = calculateChecksum(SHARED_FILE_SERVICE.getFilePath(c.getFileId()), c.getOffset(), c.getSize(), blockChecksums);
             if (checksum == null || checksum.isEmpty()) {
                 log.severe(String.format("Chunk checksum calculation failed for file '%s'.", c.getFileId()));
                 return;
             }
+            c.setBlockChecksums(blockChecksums);
+            c.setTreeRoot(HashTree.root(blockChecksums, checksumAlgorithm));
             c.setChecksum(checksum);
+            SHARED_FILE_SERVICE.getChunkIndex().add(c);
 
             // update metadata observers
             SharedFile sharedFile = SHARED_FILE_SERVICE.getFile(c.getFileId());
@@ -79,6 +98,204 @@ public class ChecksumService {
         };
     }
 
+    /**
+     * Re-hashes a modified local file async and publishes it as the next version of the shared file.
+     * Chunks whose bytes did not change are kept, nodes only download the changed chunks.
+     * @param sharedFile modified file
+     * @param fileSize current size of the file
+     * @param lastModified current modification time of the file
+     */
+    public void rehash(SharedFile sharedFile, long fileSize, long lastModified) {
+        if (!rehashing.add(sharedFile.getFileId())) {
+            return;
+        }
+        executor.execute(() -> {
+            try {
+                handleModifiedFile(sharedFile, fileSize, lastModified);
+            } catch (Exception e) {
+                log.log(Level.SEVERE, "Ooops!", e);
+            } finally {
+                rehashing.remove(sharedFile.getFileId());
+            }
+        });
+    }
+
+    private void handleModifiedFile(SharedFile sharedFile, long fileSize, long lastModified) {
+        FileMetadata metadata = sharedFile.getMetadata();
+        List<Chunk> previousChunks = new ArrayList<>(metadata.getChunks());
+
+        // every chunk has to be read to know whether it changed
+        List<Chunk> chunks;
+        if (metadata.getChunking().isContentDefined()) {
+            // boundaries move with the content, the file gets cut again
+            chunks = cutChunks(sharedFile.getFileId(), sharedFile.getFilePath(), metadata.getChunking());
+        } else {
+            chunks = hashChunks(sharedFile.getFilePath(), Chunk.getChunks(sharedFile.getFileId(), fileSize));
+        }
+        if (chunks == null) {
+            log.warning(String.format("Could not re-hash modified file '%s', keep the previous version", sharedFile.getFilename()));
+            return;
+        }
+
+        // chunks with unchanged bytes keep their state, content defined chunks
+        // move with inserted or removed bytes and get matched by checksum only,
+        // a moved chunk was cut and hashed at its new offset already
+        int changed = 0;
+        for (int i = 0; i < chunks.size(); i++) {
+            Chunk c = chunks.get(i);
+            Chunk previous = previousChunks.stream()
+                .filter(p -> p.getOffset() == c.getOffset() && p.equals(c))
+                .findFirst().orElse(null);
+            if (previous != null) {
+                chunks.set(i, previous);
+            } else if (previousChunks.stream().noneMatch(p -> p.equals(c))) {
+                changed++;
+            }
+        }
+        fileSize = chunks.stream().mapToLong(Chunk::getSize).sum();
+
+        // replaced bytes are gone, they can not be copied anymore
+        previousChunks.stream()
+            .filter(p -> chunks.stream().noneMatch(c -> c == p))
+            .forEach(SHARED_FILE_SERVICE.getChunkIndex()::remove);
+        chunks.forEach(SHARED_FILE_SERVICE.getChunkIndex()::add);
+
+        metadata.setVersion(metadata.getVersion() + 1, fileSize, chunks, lastModified);
+        // mapped chunks of the previous version may be truncated or rewritten
+        SHARED_FILE_SERVICE.getChunkCache().invalidate(sharedFile.getFileId());
+        log.info(String.format("File '%s' was modified, version %d has %d of %d chunks changed",
+            sharedFile.getFilename(), metadata.getVersion(), changed, chunks.size()));
+
+        // publish the new version to all nodes, as if the file was shared newly
+        sharedFile.resetReplicaNodes();
+        sharedFile.addObserver(new FileChecksumObserver(checksumAlgorithm));
+        sharedFile.notifyObservers(metadata);
+    }
+
+    /**
+     * Calculates the checksums of chunks and their blocks
+     * @return the chunks, or null if the file could not be read
+     */
+    private List<Chunk> hashChunks(String filePath, List<Chunk> chunks) {
+        for (Chunk c : chunks) {
+            List<String> blockChecksums = new ArrayList<>(c.getBlockCount());
+            String checksum = calculateChecksum(filePath, c.getOffset(), c.getSize(), blockChecksums);
+            if (checksum == null) {
+                return null;
+            }
+            c.setBlockChecksums(blockChecksums);
+            c.setTreeRoot(HashTree.root(blockChecksums, checksumAlgorithm));
+            c.setChecksum(checksum);
+        }
+        return chunks;
+    }
+
+    /**
+     * Cuts a local file into content defined chunks async, the chunks get hashed in the same pass
+     * @param sharedFile file shared with content defined chunking
+     */
+    void setContentDefinedChunks(SharedFile sharedFile) {
+        executor.execute(() -> {
+            FileMetadata metadata = sharedFile.getMetadata();
+            List<Chunk> chunks = cutChunks(sharedFile.getFileId(), sharedFile.getFilePath(), metadata.getChunking());
+            if (chunks == null) {
+                log.severe(String.format("Content defined chunking failed for file '%s'.", sharedFile.getFilename()));
+                return;
+            }
+            metadata.setChunks(chunks);
+            chunks.forEach(SHARED_FILE_SERVICE.getChunkIndex()::add);
+            log.info(String.format("Cut file '%s' into %d chunks, %s", sharedFile.getFilename(), chunks.size(), metadata.getChunking()));
+
+            // update metadata observers
+            sharedFile.notifyObservers(metadata);
+        });
+    }
+
+    /**
+     * Cuts a file into content defined chunks, and calculates the checksums of the chunks
+     * and of their blocks in the same pass over the file
+     * @param fileId id of the shared file
+     * @param filePath file to read
+     * @param chunking chunk sizes
+     * @return hashed chunks covering the whole file, or null if the file could not be read
+     */
+    private List<Chunk> cutChunks(String fileId, String filePath, Chunking chunking) {
+        MessageDigest md;
+        MessageDigest blockMd;
+        try {
+            md = MessageDigest.getInstance(checksumAlgorithm);
+            blockMd = MessageDigest.getInstance(checksumAlgorithm);
+        } catch (NoSuchAlgorithmException e) {
+            log.log(Level.WARNING, "Hash algorithm not found!", e);
+            return null;
+        }
+
+        GearChunker chunker = new GearChunker(chunking.getMinSize(), chunking.getAvgSize(), chunking.getMaxSize());
+        List<Chunk> chunks = new ArrayList<>();
+        List<String> blockChecksums = new ArrayList<>();
+        byte[] b = new byte[CUT_BUFFER_SIZE];
+        long chunkOffset = 0;
+        long chunkSize = 0;
+        long remainingBlockBytes = Chunk.BLOCK_SIZE;
+        try (FileInputStream is = new FileInputStream(filePath)) {
+            int len;
+            while ((len = is.read(b)) != -1) {
+                int pos = 0;
+                while (pos < len) {
+                    int cut = chunker.next(b, pos, len);
+                    int end = cut < 0 ? len : pos + cut;
+                    md.update(b, pos, end - pos);
+                    remainingBlockBytes = updateBlocks(blockMd, b, pos, end, remainingBlockBytes, blockChecksums);
+                    chunkSize += end - pos;
+                    pos = end;
+
+                    if (cut >= 0) {
+                        chunks.add(cutChunk(fileId, chunkOffset, chunkSize, md, blockMd, remainingBlockBytes, blockChecksums));
+                        chunkOffset += chunkSize;
+                        chunkSize = 0;
+                        remainingBlockBytes = Chunk.BLOCK_SIZE;
+                        blockChecksums = new ArrayList<>();
+                    }
+                }
+            }
+            if (chunkSize > 0) {
+                // end of file ends the last chunk
+                chunks.add(cutChunk(fileId, chunkOffset, chunkSize, md, blockMd, remainingBlockBytes, blockChecksums));
+            }
+        } catch (IOException e) {
+            log.log(Level.SEVERE, String.format("Could not read file '%s'", filePath), e);
+            return null;
+        }
+        return chunks;
+    }
+
+    private static long updateBlocks(MessageDigest blockMd, byte[] b, int from, int to, long remainingBlockBytes, List<String> blockChecksums) {
+        while (from < to) {
+            int len = (int) Math.min(to - from, remainingBlockBytes);
+            blockMd.update(b, from, len);
+            from += len;
+            remainingBlockBytes -= len;
+            if (remainingBlockBytes == 0) {
+                blockChecksums.add(digestToString(blockMd.digest()));
+                remainingBlockBytes = Chunk.BLOCK_SIZE;
+            }
+        }
+        return remainingBlockBytes;
+    }
+
+    private Chunk cutChunk(String fileId, long offset, long size, MessageDigest md, MessageDigest blockMd,
+                           long remainingBlockBytes, List<String> blockChecksums) {
+        if (remainingBlockBytes < Chunk.BLOCK_SIZE) {
+            // last block of the chunk is shorter
+            blockChecksums.add(digestToString(blockMd.digest()));
+        }
+        Chunk chunk = new Chunk(fileId, offset, size);
+        chunk.setBlockChecksums(blockChecksums);
+        chunk.setTreeRoot(HashTree.root(blockChecksums, checksumAlgorithm));
+        chunk.setChecksum(digestToString(md.digest()));
+        return chunk;
+    }
+
     public boolean compareChecksum(SharedFile sharedFile, String checksum) {
         String fileChecksum = calculateChecksum(sharedFile);
         boolean isEqualChecksum = checksum.equals(fileChecksum);
@@ -125,51 +342,100 @@ public class ChecksumService {
         chunks.forEach(c -> executor.execute(handleChunk(c)));
     }
 
+    /**
+     * Runs the verification of a downloaded chunk async, outside the locks of the caller
+     * @param verification reads and checks the chunk
+     */
+    public void verify(Runnable verification) {
+        verifier.execute(() -> {
+            try {
+                verification.run();
+            } catch (Exception e) {
+                log.log(Level.SEVERE, "Ooops!", e);
+            }
+        });
+    }
+
     private String calculateChecksum(Chunk c) {
-        String filePath = SHARED_FILE_SERVICE.getFilePath(c.getFileId());
+        return calculateChecksum(SHARED_FILE_SERVICE.getFilePath(c.getFileId()), c.getOffset(), c.getSize());
+    }
 
-        // open file
-        BufferedInputStream is;
+    /**
+     * Calculates the checksum of a byte range of a file, e.g. of a chunk within a download file
+     * @param filePath file to read
+     * @param offset first byte of the range
+     * @param size count of bytes
+     * @return checksum, or null if the range could not be read
+     */
+    public String calculateChecksum(String filePath, long offset, long size) {
+        return calculateChecksum(filePath, offset, size, null);
+    }
+
+    /**
+     * Calculates the checksum of a byte range of a file, and the checksums of its blocks
+     * @param filePath file to read
+     * @param offset first byte of the range, start of the first block
+     * @param size count of bytes
+     * @param blockChecksums receives the checksum of each block of the range, if not null
+     * @return checksum, or null if the range could not be read
+     */
+    public String calculateChecksum(String filePath, long offset, long size, List<String> blockChecksums) {
+        // open file, the range gets read by position, without skipping through the file
+        FileChannel in;
         try {
-            is = new BufferedInputStream(new FileInputStream(filePath));
-        } catch (FileNotFoundException e) {
+            in = FileChannel.open(Paths.get(filePath), StandardOpenOption.READ);
+        } catch (NoSuchFileException e) {
             log.log(Level.WARNING, String.format("File '%s' not found!", filePath), e);
             return null;
+        } catch (IOException e) {
+            log.log(Level.WARNING, String.format("Could not open file '%s'", filePath), e);
+            return null;
         }
 
         // prepare message digest
         MessageDigest md;
+        MessageDigest blockMd;
         try {
             md = MessageDigest.getInstance(checksumAlgorithm);
+            blockMd = MessageDigest.getInstance(checksumAlgorithm);
         } catch (NoSuchAlgorithmException e) {
             log.log(Level.WARNING, "Hash algorithm not found!", e);
+            closeQuietly(in);
             return null;
         }
 
         // calculate chunk checksum
         String checksum;
-        byte[] b = new byte[BUFFER_SIZE];
+        ByteBuffer buf = ByteBuffer.allocate(BUFFER_SIZE);
         try {
-            // move to beginning of chunk
-            long bytesSkipped = is.skip(c.getOffset());
-            if (bytesSkipped != c.getOffset()) {
-                log.warning("Could not skip enough bytes to comply with chunk offset!");
-                return null;
-            }
-
             // read bytes
-            long remainingBytes = c.getSize();
+            long position = offset;
+            long remainingBytes = size;
+            long remainingBlockBytes = Chunk.BLOCK_SIZE;
             while (remainingBytes > 0) {
-                int expectedLen = (int) Math.min(BUFFER_SIZE, remainingBytes);
-                int len = is.read(b, 0, expectedLen);
-                if (len != expectedLen) {
-                    // error occurred read insufficient bytes
-                    log.log(Level.SEVERE, "Could not read enough bytes from file!");
-                    return null;
+                // buffer size divides the block size, reads never cross a block border
+                buf.clear();
+                buf.limit((int) Math.min(BUFFER_SIZE, remainingBytes));
+                while (buf.hasRemaining()) {
+                    if (in.read(buf, position + buf.position()) < 0) {
+                        // error occurred read insufficient bytes
+                        log.log(Level.SEVERE, "Could not read enough bytes from file!");
+                        return null;
+                    }
                 }
-                md.update(b, 0, len);
+                int len = buf.position();
+                md.update(buf.array(), 0, len);
 
+                position += len;
                 remainingBytes -= len;
+                if (blockChecksums != null) {
+                    blockMd.update(buf.array(), 0, len);
+                    remainingBlockBytes -= len;
+                    if (remainingBlockBytes == 0 || remainingBytes == 0) {
+                        blockChecksums.add(digestToString(blockMd.digest()));
+                        remainingBlockBytes = Chunk.BLOCK_SIZE;
+                    }
+                }
             }
 
             checksum = digestToString(md.digest());
@@ -178,14 +444,18 @@ public class ChecksumService {
             log.log(Level.SEVERE, "Could not read bytes of file.", e);
             return null;
         } finally {
-            try {
-                is.close();
-            } catch (IOException e) {
-                log.log(Level.WARNING, "Could not close input Stream", e);
-            }
+            closeQuietly(in);
         }
 
         log.info(String.format("Calculated checksum of file '%s': %s", filePath, checksum));
         return checksum;
     }
+
+    private static void closeQuietly(FileChannel in) {
+        try {
+            in.close();
+        } catch (IOException e) {
+            log.log(Level.WARNING, "Could not close file channel", e);
+        }
+    }
 }
@@ -16,7 +16,9 @@
 
 package local;
 
+import data.Chunking;
 import data.FileMetadata;
+import data.SharedFile;
 
 import java.io.File;
 import java.io.IOException;
@@ -25,6 +27,8 @@ import java.nio.file.attribute.BasicFileAttributes;
 import java.util.List;
 import java.util.concurrent.Executor;
 import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
 import java.util.logging.Level;
 import java.util.logging.Logger;
 
@@ -32,17 +36,55 @@ public class FileService {
     private static final Logger log = Logger.getLogger(FileService.class.getName());
     private static final SharedFileService SHARED_FILE_SERVICE = (SharedFileService) ServiceLocator.getInstance().getService(ServiceLocator.SHARED_FILE_SERVICE);
     private static final ChecksumService CHUNK_SUM_SERVICE = (ChecksumService) ServiceLocator.getInstance().getService(ServiceLocator.CHECKSUM_SERVICE);
+    private static final long MODIFICATION_CHECK_PERIOD = TimeUnit.SECONDS.toMillis(30);
     private Executor executor;
+    private ScheduledExecutorService modificationChecker;
+    private Chunking chunking; // default for new shares
 
-    public FileService() {
+    public FileService(Chunking chunking) {
         this.executor = Executors.newSingleThreadExecutor();
+        this.chunking = chunking;
+        this.modificationChecker = Executors.newSingleThreadScheduledExecutor();
+        modificationChecker.scheduleWithFixedDelay(checkModifiedFiles, MODIFICATION_CHECK_PERIOD, MODIFICATION_CHECK_PERIOD, TimeUnit.MILLISECONDS);
+    }
+
+    private Runnable checkModifiedFiles = () -> {
+        try {
+            // only the origin of a file knows its modification time, it publishes new versions
+            SHARED_FILE_SERVICE.getLocal().stream()
+                .filter(sf -> sf.getMetadata().getLastModified() > 0 && sf.getMetadata().hasChecksum())
+                .forEach(this::checkModified);
+        } catch (Exception e) {
+            log.log(Level.SEVERE, "Ooops!", e);
+        }
+    };
+
+    private void checkModified(SharedFile sharedFile) {
+        Path path = Paths.get(sharedFile.getFilePath());
+        long fileSize;
+        long lastModified;
+        try {
+            fileSize = Files.size(path);
+            lastModified = Files.getLastModifiedTime(path).toMillis();
+        } catch (IOException e) {
+            log.log(Level.FINE, String.format("Could not check file '%s' for modifications", path), e);
+            return;
+        }
+
+        FileMetadata metadata = sharedFile.getMetadata();
+        if (fileSize != metadata.getFileSize() || lastModified != metadata.getLastModified()) {
+            log.info(String.format("File '%s' was modified, re-hash it", sharedFile.getFilename()));
+            CHUNK_SUM_SERVICE.rehash(sharedFile, fileSize, lastModified);
+        }
     }
 
     class SharedFileVisitor extends SimpleFileVisitor<Path> {
         private Path base;
+        private Chunking chunking;
 
-        protected SharedFileVisitor(File path) {
+        protected SharedFileVisitor(File path, Chunking chunking) {
             this.base = Paths.get(path.getParent());
+            this.chunking = chunking;
         }
 
         @Override
@@ -76,7 +118,7 @@ public class FileService {
 
             FileMetadata metadata;
             try {
-                metadata = new FileMetadata(file.getAbsolutePath(), relativePath.toString());
+                metadata = new FileMetadata(file.getAbsolutePath(), relativePath.toString(), chunking);
             } catch (IOException e) {
                 log.log(Level.WARNING, "Could not extract file metadata", e);
                 return;
@@ -89,17 +131,30 @@ public class FileService {
             SHARED_FILE_SERVICE.addLocalFile(metadata);
 
             // start chunk checksum calculation
-            CHUNK_SUM_SERVICE.setChecksums(metadata.getChunks());
+            if (chunking.isContentDefined()) {
+                CHUNK_SUM_SERVICE.setContentDefinedChunks(SHARED_FILE_SERVICE.getFile(metadata.getFileId()));
+            } else {
+                CHUNK_SUM_SERVICE.setChecksums(metadata.getChunks());
+            }
         }
     }
 
     public void handleDroppedPaths(List<File> pathList) {
+        handleDroppedPaths(pathList, chunking);
+    }
+
+    /**
+     * Shares files, directories get walked
+     * @param pathList files and directories to share
+     * @param chunking how to cut the files into chunks
+     */
+    public void handleDroppedPaths(List<File> pathList, Chunking chunking) {
         for (File path : pathList) {
             log.info("Dropped path: " + path.getAbsolutePath());
 
             if (path.isFile() || path.isDirectory()) {
                 // walk path
-                SharedFileVisitor pathVisitor = new SharedFileVisitor(path);
+                SharedFileVisitor pathVisitor = new SharedFileVisitor(path, chunking);
                 executor.execute(() -> {
                     try {
                         Files.walkFileTree(Paths.get(path.getAbsolutePath()), pathVisitor);
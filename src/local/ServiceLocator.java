@@ -16,6 +16,11 @@
 
 package local;
 
+import data.Chunking;
+import local.impl.RandomChunkSelection;
+import local.impl.RarestFirstChunkSelection;
+import local.impl.SequentialChunkSelection;
+import local.impl.WriteBehindStage;
 import main.Sharer;
 import net.*;
 
@@ -38,6 +43,7 @@ public class ServiceLocator {
     public static final String SHARED_FILE_INFO_SERVICE = "shareFileInfoService";
     public static final String SHARED_CMD_RECEIVER_SERVICE = "shareCmdReceiverService";
     public static final String SHARE_SERVICE = "shareService";
+    public static final String TRANSFER_SERVICE = "transferService";
 
     private static Map<String, Object> services;
     private static ServiceLocator instance;
@@ -60,6 +66,8 @@ public class ServiceLocator {
     private static void init() {
 
         int cmdPort = Integer.parseInt(config.getProperty(Sharer.CMD_PORT));
+        int dataPort = Integer.parseInt(config.getProperty(Sharer.DATA_PORT, "6133"));
+        int transferThreads = Integer.parseInt(config.getProperty(Sharer.TRANSFER_THREADS, "2"));
         int maxConcurrentDownloads = Integer.parseInt(config.getProperty(Sharer.MAX_DOWNLOADS));
         int maxConcurrentUploads = Integer.parseInt(config.getProperty(Sharer.MAX_UPLOADS));
         int discoveryPort = Integer.parseInt(config.getProperty(Sharer.DISCOVERY_PORT));
@@ -67,15 +75,26 @@ public class ServiceLocator {
         long shareInfoPeriod = Long.parseLong(config.getProperty(Sharer.SHARE_INFO_PERIOD));
         String downloadDirectory = config.getProperty(Sharer.DOWNLOAD_DIRECTORY);
         String checksumAlgorithm = config.getProperty(Sharer.CHECKSUM_ALGORITHM);
+        long uploadCacheSize = Long.parseLong(config.getProperty(Sharer.UPLOAD_CACHE_SIZE, "512")) * 1024 * 1024;
 
         services = new HashMap<>();
 
-        services.put(SHARED_FILE_SERVICE, new SharedFileService(downloadDirectory, checksumAlgorithm));
+        services.put(SHARED_FILE_SERVICE, new SharedFileService(downloadDirectory, checksumAlgorithm, uploadCacheSize));
         services.put(NETWORK_SERVICE, new NetworkService(cmdPort)); // depends on shared file service
         services.put(SHARED_FILE_INFO_SERVICE, new SharedFileInfoService(shareInfoPeriod)); // depends on network service, shared file service
         services.put(CHECKSUM_SERVICE, new ChecksumService(checksumAlgorithm)); // depends on shared file service
-        services.put(SHARE_SERVICE, new ShareService(maxConcurrentDownloads, maxConcurrentUploads, checksumAlgorithm)); // depends on network service, checksum service
-        services.put(FILE_SERVICE, new FileService()); // depends on shared file service, chunk sum service
+        try {
+            TransferService transferService = new TransferService(dataPort, transferThreads);
+            applyRateLimits(transferService);
+            services.put(TRANSFER_SERVICE, transferService);
+        } catch (IOException e) {
+            log.log(Level.SEVERE, "Could not bind transfer service to port", e);
+            System.exit(1);
+        }
+        ShareService shareService = new ShareService(dataPort, maxConcurrentDownloads, maxConcurrentUploads, checksumAlgorithm, createWriteBehindStage());
+        applyChunkSelection(shareService);
+        services.put(SHARE_SERVICE, shareService); // depends on network service, checksum service, transfer service
+        services.put(FILE_SERVICE, new FileService(createChunking())); // depends on shared file service, chunk sum service
 
         try {
             services.put(DISCOVERY_SERVICE, new DiscoveryService(discoveryPort, 0, discoveryPeriod)); // depends on network service
@@ -100,6 +119,81 @@ public class ServiceLocator {
         }
     }
 
+    private static void applyRateLimits(TransferService transferService) {
+        long uploadRate = Long.parseLong(config.getProperty(Sharer.UPLOAD_RATE, "0")) * 1024;
+        long downloadRate = Long.parseLong(config.getProperty(Sharer.DOWNLOAD_RATE, "0")) * 1024;
+        long peerUploadRate = Long.parseLong(config.getProperty(Sharer.PEER_UPLOAD_RATE, "0")) * 1024;
+        long peerDownloadRate = Long.parseLong(config.getProperty(Sharer.PEER_DOWNLOAD_RATE, "0")) * 1024;
+        long burstMillis = Long.parseLong(config.getProperty(Sharer.RATE_BURST, "50"));
+
+        transferService.setRateLimits(uploadRate, downloadRate, peerUploadRate, peerDownloadRate, burstMillis);
+    }
+
+    private static Chunking createChunking() {
+        String chunking = config.getProperty(Sharer.CHUNKING, "fixed");
+        switch (chunking) {
+            case "fixed":
+                return Chunking.fixed();
+            case "cdc":
+                long minSize = Long.parseLong(config.getProperty(Sharer.CDC_MIN_SIZE, "8")) * 1024 * 1024;
+                long avgSize = Long.parseLong(config.getProperty(Sharer.CDC_AVG_SIZE, "32")) * 1024 * 1024;
+                long maxSize = Long.parseLong(config.getProperty(Sharer.CDC_MAX_SIZE, "64")) * 1024 * 1024;
+                try {
+                    return Chunking.contentDefined(minSize, avgSize, maxSize);
+                } catch (IllegalArgumentException e) {
+                    log.log(Level.WARNING, "Invalid content defined chunk sizes, use fixed chunks", e);
+                    return Chunking.fixed();
+                }
+            default:
+                log.warning(String.format("Unknown chunking '%s', use fixed chunks", chunking));
+                return Chunking.fixed();
+        }
+    }
+
+    private static WriteBehindStage createWriteBehindStage() {
+        long writeBufferSize = Long.parseLong(config.getProperty(Sharer.WRITE_BUFFER_SIZE, "64")) * 1024 * 1024;
+        long syncSize = Long.parseLong(config.getProperty(Sharer.SYNC_SIZE, "64")) * 1024 * 1024;
+        String syncPolicy = config.getProperty(Sharer.SYNC_POLICY, "chunk");
+        WriteBehindStage.SyncPolicy policy;
+        switch (syncPolicy) {
+            case "none":
+                policy = WriteBehindStage.SyncPolicy.NONE;
+                break;
+            case "chunk":
+                policy = WriteBehindStage.SyncPolicy.CHUNK;
+                break;
+            case "size":
+                policy = WriteBehindStage.SyncPolicy.SIZE;
+                break;
+            default:
+                log.warning(String.format("Unknown sync policy '%s', sync after every chunk", syncPolicy));
+                policy = WriteBehindStage.SyncPolicy.CHUNK;
+        }
+
+        return new WriteBehindStage(writeBufferSize, policy, syncSize);
+    }
+
+    private static void applyChunkSelection(ShareService shareService) {
+        String chunkSelection = config.getProperty(Sharer.CHUNK_SELECTION, "rarest");
+        switch (chunkSelection) {
+            case "random":
+                shareService.setChunkSelection(new RandomChunkSelection());
+                break;
+            case "sequential":
+                shareService.setChunkSelection(new SequentialChunkSelection());
+                break;
+            case "rarest":
+                shareService.setChunkSelection(new RarestFirstChunkSelection());
+                break;
+            default:
+                log.warning(String.format("Unknown chunk selection '%s', use rarest first", chunkSelection));
+                shareService.setChunkSelection(new RarestFirstChunkSelection());
+        }
+
+        int readAhead = Integer.parseInt(config.getProperty(Sharer.READ_AHEAD, "4"));
+        shareService.setStreamSelection(new SequentialChunkSelection(readAhead));
+    }
+
     public Object getService(String serviceName) {
         Object service = services.get(serviceName);
 
@@ -111,6 +205,16 @@ public class ServiceLocator {
     }
 
     public static void updateConfig(Properties config) {
+        ServiceLocator.config = config;
+
+        // bandwidth limits can be changed while running
+        if (services != null && services.get(TRANSFER_SERVICE) != null) {
+            applyRateLimits((TransferService) services.get(TRANSFER_SERVICE));
+        }
+        if (services != null && services.get(SHARE_SERVICE) != null) {
+            applyChunkSelection((ShareService) services.get(SHARE_SERVICE));
+        }
+
         // todo: implement
         // stop/shutdown all services
         // init services with new config
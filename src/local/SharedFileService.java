@@ -20,12 +20,18 @@ import data.Chunk;
 import data.FileMetadata;
 import data.SharedFile;
 import local.decl.AddFileListener;
+import local.impl.ChunkCache;
+import local.impl.ChunkIndex;
 import local.impl.FileChecksumObserver;
 import ui.controller.ChunkProgressController;
 
 import java.io.File;
+import java.io.IOException;
+import java.nio.file.Files;
 import java.nio.file.Paths;
 import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
 import java.util.List;
 import java.util.Map;
 import java.util.UUID;
@@ -33,21 +39,28 @@ import java.util.concurrent.ConcurrentHashMap;
 import java.util.concurrent.ConcurrentMap;
 import java.util.concurrent.Executor;
 import java.util.concurrent.Executors;
+import java.util.logging.Level;
 import java.util.logging.Logger;
 import java.util.stream.Collectors;
 
 public class SharedFileService {
     private static final Logger log = Logger.getLogger(SharedFileService.class.getName());
+    private static final long FREE_SPACE_MARGIN = Chunk.CHUNK_SIZE; // kept free for journals and metadata
 
     private ConcurrentMap<String, SharedFile> sharedFiles = new ConcurrentHashMap<>();
+    private Map<String, SharedFile> reservations = new LinkedHashMap<>(); // downloads with reserved disk space
+    private Map<String, SharedFile> waitingForSpace = new LinkedHashMap<>(); // downloads which did not fit, in arrival order
     private List<AddFileListener> fileListeners = new ArrayList<>();
+    private ChunkIndex chunkIndex = new ChunkIndex();
+    private ChunkCache chunkCache;
     private String downloadDirectory;
     private String checksumAlgorithm;
     private Executor executorForRemote;
 
-    public SharedFileService(String downloadDirectory, String checksumAlgorithm) {
+    public SharedFileService(String downloadDirectory, String checksumAlgorithm, long uploadCacheSize) {
         this.downloadDirectory = downloadDirectory;
         this.checksumAlgorithm = checksumAlgorithm;
+        this.chunkCache = new ChunkCache(uploadCacheSize);
         this.executorForRemote = Executors.newFixedThreadPool(2);
     }
 
@@ -94,6 +107,13 @@ public class SharedFileService {
                 if (sf2 == null) {
                     return sf1;
                 }
+                long version = sf1.getMetadata().getVersion();
+                if (sf2.getMetadata().getVersion() < version) {
+                    // info of a node which did not get the current version yet
+                    return sf1;
+                } else if (sf2.getMetadata().getVersion() > version) {
+                    updateVersion(sf1, sf2.getMetadata());
+                }
                 // merge replica nodes
                 sf2.getReplicaNodes().forEach(sf1::addReplicaNode);
 
@@ -103,7 +123,9 @@ public class SharedFileService {
                 // merge chunks
                 List<Chunk> newChunks = sf2.getMetadata().getChunks();
                 if (newChunks != null) {
-                    newChunks.removeAll(sf1.getMetadata().getChunks()); // remove duplicates
+                    // remove duplicates, the same content may appear at several offsets
+                    List<Chunk> knownChunks = sf1.getMetadata().getChunks();
+                    newChunks.removeIf(n -> knownChunks.stream().anyMatch(c -> c.getOffset() == n.getOffset() && c.equals(n)));
                 }
                 sf1.getMetadata().getChunks().addAll(newChunks);
                 return sf1;
@@ -131,6 +153,133 @@ public class SharedFileService {
         });
     }
 
+    /**
+     * Takes over the chunks of a newer version of the file, which was modified at its origin.
+     * Local chunks whose bytes did not change stay local, only changed chunks get downloaded.
+     * With content defined chunking inserted bytes move the following chunks, local chunks
+     * found at other offsets get relocated within the download file instead of downloaded.
+     */
+    private void updateVersion(SharedFile sharedFile, FileMetadata remote) {
+        FileMetadata metadata = sharedFile.getMetadata();
+        List<Chunk> previousChunks = new ArrayList<>(metadata.getChunks());
+        List<Chunk> chunks = new ArrayList<>();
+        if (remote.getChunks() != null) {
+            remote.getChunks().forEach(chunk -> {
+                Chunk unchanged = previousChunks.stream()
+                    .filter(p -> p.isLocal() && p.getOffset() == chunk.getOffset() && p.equals(chunk))
+                    .findFirst().orElse(null);
+                chunks.add(unchanged != null ? unchanged : chunk);
+            });
+        }
+
+        // matched by checksum, the bytes stay indexed until they got relocated
+        List<Chunk> moved = previousChunks.stream()
+            .filter(p -> p.isLocal() && chunks.stream().noneMatch(c -> c == p))
+            .filter(p -> chunks.stream().anyMatch(c -> !c.isLocal() && c.equals(p)))
+            .collect(Collectors.toList());
+        sharedFile.setMovedChunks(moved);
+
+        // replaced bytes get overwritten by the download, they can not be copied anymore
+        previousChunks.stream()
+            .filter(p -> chunks.stream().noneMatch(c -> c == p) && moved.stream().noneMatch(m -> m == p))
+            .forEach(chunkIndex::remove);
+
+        metadata.setVersion(remote.getVersion(), remote.getFileSize(), chunks, metadata.getLastModified());
+        chunkCache.invalidate(sharedFile.getFileId());
+        metadata.setTreeRoot(remote.getTreeRoot());
+        // replica nodes announced chunks of the previous version
+        sharedFile.resetReplicaNodes();
+
+        log.info(String.format("Remote file '%s' was modified, version %d, %d of %d chunks unchanged, %d moved", sharedFile.getFilename(),
+            remote.getVersion(), chunks.stream().filter(Chunk::isLocal).count(), chunks.size(), moved.size()));
+    }
+
+    /**
+     * Reserves the disk space the download of the file still requires, or queues the download
+     * until enough space is available. Download files are preallocated with setLength, which leaves
+     * sparse files on most file systems; their space only gets used while chunks get written.
+     * So the ledger counts the bytes not written yet of each active download, otherwise concurrent
+     * downloads would all pass the check and together fill the disk.
+     * @param sharedFile file to download
+     * @return true if the space is reserved, false if the download got queued
+     */
+    synchronized public boolean reserveSpace(SharedFile sharedFile) {
+        if (reservations.containsKey(sharedFile.getFileId())) {
+            return true;
+        }
+        // earlier queued downloads go first
+        if (waitingForSpace.isEmpty() || waitingForSpace.containsKey(sharedFile.getFileId())) {
+            if (fitsOnDisk(sharedFile)) {
+                waitingForSpace.remove(sharedFile.getFileId());
+                reservations.put(sharedFile.getFileId(), sharedFile);
+                return true;
+            }
+        }
+        if (waitingForSpace.put(sharedFile.getFileId(), sharedFile) == null) {
+            log.warning(String.format("Not enough disk space left to download file '%s', queued download", sharedFile.getFilename()));
+        }
+        return false;
+    }
+
+    /**
+     * Frees the reserved disk space of a finished or aborted download
+     */
+    synchronized public void releaseSpace(String fileId) {
+        reservations.remove(fileId);
+    }
+
+    /**
+     * Reserves disk space for queued downloads, in arrival order, e.g. after a download finished or space got freed
+     * @return downloads which can start now
+     */
+    synchronized public List<SharedFile> admitWaitingDownloads() {
+        List<SharedFile> admitted = new ArrayList<>();
+        Iterator<SharedFile> it = waitingForSpace.values().iterator();
+        while (it.hasNext()) {
+            SharedFile sharedFile = it.next();
+            if (!fitsOnDisk(sharedFile)) {
+                break;
+            }
+            it.remove();
+            reservations.put(sharedFile.getFileId(), sharedFile);
+            admitted.add(sharedFile);
+            log.info(String.format("Enough disk space left to download queued file '%s'", sharedFile.getFilename()));
+        }
+        return admitted;
+    }
+
+    /**
+     * @return bytes active downloads will still write to disk
+     */
+    synchronized public long getReservedSpace() {
+        return reservations.values().stream().mapToLong(SharedFile::getRemainingSize).sum();
+    }
+
+    private boolean fitsOnDisk(SharedFile sharedFile) {
+        long usableSpace;
+        try {
+            usableSpace = Files.getFileStore(Paths.get(downloadDirectory)).getUsableSpace();
+        } catch (IOException e) {
+            log.log(Level.WARNING, "Could not determine remaining disk space", e);
+            return false;
+        }
+        return usableSpace - getReservedSpace() - FREE_SPACE_MARGIN >= sharedFile.getRemainingSize();
+    }
+
+    /**
+     * @return index of local chunks by checksum, across all shared files
+     */
+    public ChunkIndex getChunkIndex() {
+        return chunkIndex;
+    }
+
+    /**
+     * @return memory mapped chunks of recent uploads, across all shared files
+     */
+    public ChunkCache getChunkCache() {
+        return chunkCache;
+    }
+
     public String getDownloadDirectory() {
         return downloadDirectory;
     }
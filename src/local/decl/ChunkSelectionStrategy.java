@@ -0,0 +1,34 @@
+/*
+ * Copyright (c) 2018. Markus Monz
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package local.decl;
+
+import data.Chunk;
+import data.SharedFile;
+import net.data.Pair;
+
+import java.util.UUID;
+
+/**
+ * Decides which chunk of a file gets downloaded next, and from which node
+ */
+public interface ChunkSelectionStrategy {
+    /**
+     * @param sharedFile file to download
+     * @return node and chunk to download next, or null if no chunk to download has a replica node
+     */
+    public Pair<UUID, Chunk> nextChunk(SharedFile sharedFile);
+}
@@ -0,0 +1,264 @@
+/*
+ * Copyright (c) 2018. Markus Monz
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package local.impl;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.lang.reflect.Field;
+import java.lang.reflect.Method;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * Keeps memory mapped views of recently uploaded chunks, so chunks requested by
+ * many nodes at once are not read from disk again for every request.
+ * Entries are evicted least recently used first, once the byte budget is exceeded,
+ * and invalidated when their file changes. Mappings get unmapped as soon as no
+ * upload reads them anymore, not when GC finds them.
+ * Hits and misses count block requests, a chunk gets requested in many blocks.
+ */
+public class ChunkCache {
+    private static final Logger log = Logger.getLogger(ChunkCache.class.getName());
+    private static final Unmapper UNMAPPER = createUnmapper();
+
+    private final long maxBytes;
+    private final Map<String, Mapping> chunks;
+    private final AtomicLong hits; // block requests served from a cached chunk
+    private final AtomicLong misses; // block requests which mapped their chunk
+    private long cachedBytes;
+
+    public ChunkCache(long maxBytes) {
+        this.maxBytes = maxBytes;
+        this.chunks = new LinkedHashMap<>(16, 0.75f, true); // access order, eldest is least recently used
+        this.hits = new AtomicLong();
+        this.misses = new AtomicLong();
+    }
+
+    public boolean isEnabled() {
+        return maxBytes > 0;
+    }
+
+    /**
+     * Get a view of the chunk's bytes, maps the chunk if it is not cached yet
+     * @param fileId id of the shared file
+     * @param version version of the file the chunk belongs to
+     * @param chunkChecksum checksum of the chunk
+     * @param filePath file to map the chunk from, on cache miss
+     * @param offset chunk offset within the file
+     * @param size chunk size
+     * @return view with its own position, must be closed after the upload
+     * @throws IOException
+     */
+    public View get(String fileId, long version, String chunkChecksum, Path filePath, long offset, long size) throws IOException {
+        String key = fileId + ":" + version + ":" + filePath + ":" + offset + ":" + chunkChecksum;
+
+        synchronized (this) {
+            Mapping cached = chunks.get(key);
+            if (cached != null) {
+                hits.incrementAndGet();
+                return new View(cached);
+            }
+        }
+        misses.incrementAndGet();
+
+        // map outside of lock, mapping stays valid after the channel got closed
+        ByteBuffer mapped;
+        try (FileChannel channel = FileChannel.open(filePath, StandardOpenOption.READ)) {
+            mapped = channel.map(FileChannel.MapMode.READ_ONLY, offset, size);
+        }
+
+        Mapping mapping = new Mapping(fileId, mapped);
+        View view = new View(mapping);
+        if (size <= maxBytes) {
+            put(key, mapping);
+        } else {
+            // not cached, unmapped once the view got closed
+            retire(mapping);
+        }
+        return view;
+    }
+
+    /**
+     * Drops all cached chunks of the file, e.g. the file was modified, renamed or deleted
+     * @param fileId id of the shared file
+     */
+    synchronized public void invalidate(String fileId) {
+        Iterator<Map.Entry<String, Mapping>> it = chunks.entrySet().iterator();
+        while (it.hasNext()) {
+            Map.Entry<String, Mapping> entry = it.next();
+            if (entry.getValue().fileId.equals(fileId)) {
+                cachedBytes -= entry.getValue().mapped.capacity();
+                it.remove();
+                retire(entry.getValue());
+                log.fine("Invalidated chunk in upload cache: " + entry.getKey());
+            }
+        }
+    }
+
+    synchronized private void put(String key, Mapping mapping) {
+        Mapping previous = chunks.put(key, mapping);
+        if (previous != null) {
+            cachedBytes -= previous.mapped.capacity();
+            retire(previous);
+        }
+        cachedBytes += mapping.mapped.capacity();
+
+        // evict least recently used chunks
+        Iterator<Map.Entry<String, Mapping>> it = chunks.entrySet().iterator();
+        while (cachedBytes > maxBytes && it.hasNext()) {
+            Map.Entry<String, Mapping> eldest = it.next();
+            cachedBytes -= eldest.getValue().mapped.capacity();
+            it.remove();
+            retire(eldest.getValue());
+            log.fine("Evicted chunk from upload cache: " + eldest.getKey());
+        }
+    }
+
+    /**
+     * Unmaps the mapping once no view reads it anymore
+     */
+    synchronized private void retire(Mapping mapping) {
+        mapping.retired = true;
+        if (mapping.views == 0) {
+            unmap(mapping);
+        }
+    }
+
+    synchronized private void closeView(Mapping mapping) {
+        mapping.views--;
+        if (mapping.retired && mapping.views == 0) {
+            unmap(mapping);
+        }
+    }
+
+    private void unmap(Mapping mapping) {
+        if (mapping.unmapped) {
+            return;
+        }
+        mapping.unmapped = true;
+        if (UNMAPPER == null) {
+            // mapping gets released by GC
+            return;
+        }
+        try {
+            UNMAPPER.unmap(mapping.mapped);
+        } catch (Exception e) {
+            log.log(Level.WARNING, "Could not unmap chunk, leave it to GC", e);
+        }
+    }
+
+    public long getHits() {
+        return hits.get();
+    }
+
+    public long getMisses() {
+        return misses.get();
+    }
+
+    synchronized public long getCachedBytes() {
+        return cachedBytes;
+    }
+
+    /**
+     * Bytes of a cached chunk, the mapping stays valid until the view got closed
+     */
+    public class View implements Closeable {
+        private final Mapping mapping;
+        private final ByteBuffer buffer;
+        private boolean closed;
+
+        private View(Mapping mapping) {
+            synchronized (ChunkCache.this) {
+                mapping.views++;
+            }
+            this.mapping = mapping;
+            this.buffer = mapping.mapped.duplicate();
+        }
+
+        /**
+         * @return read only buffer with its own position, ready to be written
+         */
+        public ByteBuffer getBuffer() {
+            return buffer;
+        }
+
+        @Override
+        public void close() {
+            if (closed) {
+                return;
+            }
+            closed = true;
+            closeView(mapping);
+        }
+    }
+
+    private static class Mapping {
+        private final String fileId;
+        private final ByteBuffer mapped;
+        private int views;
+        private boolean retired;
+        private boolean unmapped;
+
+        private Mapping(String fileId, ByteBuffer mapped) {
+            this.fileId = fileId;
+            this.mapped = mapped;
+        }
+    }
+
+    private interface Unmapper {
+        void unmap(ByteBuffer mapped) throws Exception;
+    }
+
+    /**
+     * There is no public API to unmap a buffer, use the one the running JVM provides
+     * @return unmapper, or null if mappings can only be released by GC
+     */
+    private static Unmapper createUnmapper() {
+        try {
+            // Java 9 and later
+            Class<?> unsafeClass = Class.forName("sun.misc.Unsafe");
+            Method invokeCleaner = unsafeClass.getMethod("invokeCleaner", ByteBuffer.class);
+            Field theUnsafe = unsafeClass.getDeclaredField("theUnsafe");
+            theUnsafe.setAccessible(true);
+            Object unsafe = theUnsafe.get(null);
+            return mapped -> invokeCleaner.invoke(unsafe, mapped);
+        } catch (ReflectiveOperationException | RuntimeException e) {
+            // Java 8
+        }
+        try {
+            Method cleaner = Class.forName("sun.nio.ch.DirectBuffer").getMethod("cleaner");
+            Method clean = Class.forName("sun.misc.Cleaner").getMethod("clean");
+            return mapped -> {
+                Object c = cleaner.invoke(mapped);
+                if (c != null) {
+                    clean.invoke(c);
+                }
+            };
+        } catch (ReflectiveOperationException | RuntimeException e) {
+            log.log(Level.INFO, "Memory mapped chunks can not be unmapped explicitly", e);
+            return null;
+        }
+    }
+}
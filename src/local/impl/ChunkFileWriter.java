@@ -0,0 +1,374 @@
+/*
+ * Copyright (c) 2018. Markus Monz
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package local.impl;
+
+import java.io.Closeable;
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * Writes downloaded chunks into the download file of one shared file.
+ * All downloader threads of a file share one channel and write with positional
+ * writes, so there is no seek contention and only one open file per download.
+ * Writes are buffered by the {@link WriteBehindStage}; a write continuing a buffered
+ * write gets appended to its buffer, so the disk sees large sequential writes.
+ * The journal of the file records the download progress, so it survives a restart.
+ */
+public class ChunkFileWriter implements Closeable {
+    private static final Logger log = Logger.getLogger(ChunkFileWriter.class.getName());
+    private static final int MAX_OPEN_SEGMENTS = 8; // buffers being filled, e.g. one per source
+    private static final long IDLE_TIMEOUT = 1000; // milliseconds a partly filled buffer waits for more bytes
+
+    private final Path path;
+    private final RandomAccessFile file;
+    private final FileChannel channel;
+    private final DownloadJournal journal;
+    private final WriteBehindStage stage;
+    private final Map<Long, Segment> openSegments; // map<position following the buffered bytes, segment>
+    private final AtomicBoolean syncScheduled;
+    private int pendingSegments; // handed to the disk thread, not written yet
+    private long unsyncedBytes;
+    private IOException failure;
+
+    public ChunkFileWriter(Path path, String fileId, long version, long fileSize, WriteBehindStage stage) throws IOException {
+        this.path = path;
+        // a journal left behind by a deleted or replaced download file describes bytes which are gone
+        boolean intact = Files.exists(path) && Files.size(path) == fileSize;
+        this.file = new RandomAccessFile(path.toFile(), "rw");
+        this.channel = file.getChannel();
+        this.journal = new DownloadJournal(path, fileId, version, fileSize);
+        this.stage = stage;
+        this.openSegments = new LinkedHashMap<>();
+        this.syncScheduled = new AtomicBoolean();
+
+        // preallocate the whole file once, chunks get written in random order, a new version resizes it;
+        // the file stays sparse on most file systems, disk space is reserved by the shared file service
+        if (file.length() != fileSize) {
+            file.setLength(fileSize);
+        }
+        try {
+            journal.open(intact);
+        } catch (IOException e) {
+            file.close();
+            throw e;
+        }
+    }
+
+    /**
+     * Buffers bytes to be written to the given file position, does not block.
+     * Accepts fewer bytes than remaining if the buffer budget is used up, the caller
+     * has to hold back the rest until buffered bytes were written.
+     * @param src buffer to write, its position gets advanced by the accepted bytes
+     * @param position absolute file position of the first byte
+     * @return count of accepted bytes
+     * @throws IOException if a previous write of this file failed
+     */
+    synchronized public int write(ByteBuffer src, long position) throws IOException {
+        checkFailure();
+        int accepted = 0;
+        while (src.hasRemaining()) {
+            Segment segment = openSegments.remove(position);
+            if (segment == null) {
+                ByteBuffer buf = stage.allocate();
+                if (buf == null) {
+                    // budget used up, partly filled buffers must not wait for more bytes
+                    sealAll();
+                    break;
+                }
+                segment = new Segment(buf, position);
+                if (openSegments.size() >= MAX_OPEN_SEGMENTS) {
+                    Iterator<Segment> eldest = openSegments.values().iterator();
+                    seal(eldest.next());
+                    eldest.remove();
+                }
+            }
+
+            int len = Math.min(src.remaining(), segment.buf.remaining());
+            ByteBuffer part = src.duplicate();
+            part.limit(part.position() + len);
+            segment.buf.put(part);
+            src.position(src.position() + len);
+            segment.lastWrite = System.currentTimeMillis();
+            position += len;
+            accepted += len;
+
+            if (segment.buf.hasRemaining()) {
+                openSegments.put(position, segment);
+            } else {
+                seal(segment);
+            }
+        }
+        return accepted;
+    }
+
+    private void seal(Segment segment) {
+        pendingSegments++;
+        stage.write(() -> writeSegment(segment));
+    }
+
+    private void sealAll() {
+        openSegments.values().forEach(this::seal);
+        openSegments.clear();
+    }
+
+    /**
+     * Runs on the disk thread
+     */
+    private void writeSegment(Segment segment) {
+        ByteBuffer buf = segment.buf;
+        buf.flip();
+        int len = buf.remaining();
+        try {
+            long position = segment.position;
+            while (buf.hasRemaining()) {
+                position += channel.write(buf, position);
+            }
+        } catch (IOException e) {
+            log.log(Level.SEVERE, String.format("Could not write download file '%s'", path), e);
+            synchronized (this) {
+                failure = e;
+            }
+        } finally {
+            stage.recycle(buf);
+        }
+
+        boolean syncRequired;
+        synchronized (this) {
+            pendingSegments--;
+            unsyncedBytes += len;
+            syncRequired = stage.getSyncPolicy() == WriteBehindStage.SyncPolicy.SIZE && unsyncedBytes >= stage.getSyncSize();
+            notifyAll();
+        }
+        if (syncRequired) {
+            scheduleSync();
+        }
+    }
+
+    /**
+     * Hands partly filled buffers to the disk thread, which did not get more bytes for a while
+     */
+    synchronized public void writeIdle() {
+        long currentTime = System.currentTimeMillis();
+        List<Long> idle = new ArrayList<>();
+        openSegments.forEach((position, segment) -> {
+            if ((currentTime - segment.lastWrite) > IDLE_TIMEOUT) {
+                idle.add(position);
+            }
+        });
+        idle.forEach(position -> seal(openSegments.remove(position)));
+    }
+
+    /**
+     * Waits until all buffered bytes were written to the file, e.g. before the file gets read
+     * @throws IOException if a write failed
+     */
+    synchronized public void flush() throws IOException {
+        sealAll();
+        while (pendingSegments > 0) {
+            try {
+                wait();
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                throw new IOException("Interrupted while waiting for buffered writes", e);
+            }
+        }
+        checkFailure();
+    }
+
+    /**
+     * Copies a byte range of a local file into the download file, the bytes do not pass
+     * through the heap; the kernel may copy them without user space buffers
+     * @param source file to copy from, may be the download file itself
+     * @param sourcePosition position of the first byte in the source
+     * @param position absolute file position of the first byte
+     * @param count count of bytes
+     * @throws IOException
+     */
+    public void copy(Path source, long sourcePosition, long position, long count) throws IOException {
+        // buffered bytes of the range must not overwrite the copy
+        flush();
+        try (FileChannel in = FileChannel.open(source, StandardOpenOption.READ)) {
+            long copied = 0;
+            while (copied < count) {
+                in.position(sourcePosition + copied);
+                long len = channel.transferFrom(in, position + copied, count - copied);
+                if (len <= 0) {
+                    throw new EOFException(String.format("Could not read enough bytes from '%s'", source));
+                }
+                copied += len;
+            }
+        }
+        synchronized (this) {
+            unsyncedBytes += count;
+        }
+    }
+
+    /**
+     * Moves a byte range within the download file, source and target may overlap; like memmove,
+     * a range moving towards the end of the file gets copied from its end
+     * @param sourcePosition position of the first byte to move
+     * @param position new position of the first byte
+     * @param count count of bytes
+     * @throws IOException
+     */
+    public void move(long sourcePosition, long position, long count) throws IOException {
+        if (sourcePosition + count <= position || position + count <= sourcePosition) {
+            copy(path, sourcePosition, position, count);
+            return;
+        }
+        flush();
+        ByteBuffer buf = ByteBuffer.allocate((int) Math.min(count, WriteBehindStage.SEGMENT_SIZE));
+        boolean towardsEnd = position > sourcePosition;
+        long moved = 0;
+        while (moved < count) {
+            int len = (int) Math.min(buf.capacity(), count - moved);
+            long offset = towardsEnd ? count - moved - len : moved;
+            // the whole piece gets read before any of it is written
+            buf.clear();
+            buf.limit(len);
+            while (buf.hasRemaining()) {
+                if (channel.read(buf, sourcePosition + offset + buf.position()) < 0) {
+                    throw new EOFException(String.format("Could not read enough bytes from '%s'", path));
+                }
+            }
+            buf.flip();
+            while (buf.hasRemaining()) {
+                channel.write(buf, position + offset + buf.position());
+            }
+            moved += len;
+        }
+        synchronized (this) {
+            unsyncedBytes += count;
+        }
+    }
+
+    private void checkFailure() throws IOException {
+        if (failure != null) {
+            throw new IOException("Previous write of download file failed", failure);
+        }
+    }
+
+    public Path getPath() {
+        return path;
+    }
+
+    public DownloadJournal getJournal() {
+        return journal;
+    }
+
+    /**
+     * Forces written data to disk, buffered bytes get written first
+     * @throws IOException
+     */
+    public void force() throws IOException {
+        long written;
+        synchronized (this) {
+            flush();
+            written = unsyncedBytes;
+        }
+        channel.force(false);
+        synchronized (this) {
+            unsyncedBytes -= written;
+        }
+    }
+
+    /**
+     * A chunk was verified, syncs the file if the durability policy asks for it
+     */
+    public void chunkCompleted() {
+        if (stage.getSyncPolicy() == WriteBehindStage.SyncPolicy.CHUNK) {
+            scheduleSync();
+        } else if (stage.getSyncPolicy() == WriteBehindStage.SyncPolicy.NONE) {
+            // record the progress without forcing, the download resumes after a crash of the application
+            scheduleAppend();
+        }
+    }
+
+    private void scheduleSync() {
+        if (!syncScheduled.compareAndSet(false, true)) {
+            return;
+        }
+        stage.sync(() -> {
+            syncScheduled.set(false);
+            try {
+                sync();
+            } catch (IOException e) {
+                log.log(Level.WARNING, String.format("Could not sync download file '%s'", path), e);
+            }
+        });
+    }
+
+    private void scheduleAppend() {
+        if (!syncScheduled.compareAndSet(false, true)) {
+            return;
+        }
+        stage.sync(() -> {
+            syncScheduled.set(false);
+            try {
+                journal.append(this);
+            } catch (IOException e) {
+                log.log(Level.WARNING, String.format("Could not sync download file '%s'", path), e);
+            }
+        });
+    }
+
+    /**
+     * Makes written data and the recorded download progress durable
+     * @throws IOException
+     */
+    public void sync() throws IOException {
+        journal.sync(this);
+    }
+
+    @Override
+    public void close() throws IOException {
+        try {
+            // data gets forced even if no journal records are pending
+            force();
+            sync();
+        } finally {
+            journal.close();
+            channel.close();
+            file.close();
+        }
+    }
+
+    private static class Segment {
+        private final ByteBuffer buf;
+        private final long position; // file position of the first buffered byte
+        private long lastWrite;
+
+        Segment(ByteBuffer buf, long position) {
+            this.buf = buf;
+            this.position = position;
+        }
+    }
+}
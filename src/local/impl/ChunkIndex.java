@@ -0,0 +1,76 @@
+/*
+ * Copyright (c) 2018. Markus Monz
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package local.impl;
+
+import data.Chunk;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Content addressed index of the chunks of all shared files, maps a chunk checksum to
+ * every chunk holding these bytes. Chunks downloaded or hashed once can be copied
+ * into other files locally, e.g. identical regions of disk images.
+ */
+public class ChunkIndex {
+    private final Map<String, List<Chunk>> chunks; // map<chunkChecksum, chunks of shared files>
+
+    public ChunkIndex() {
+        this.chunks = new HashMap<>();
+    }
+
+    /**
+     * Adds a chunk with known checksum, chunks are compared by identity, not by checksum
+     */
+    synchronized public void add(Chunk chunk) {
+        if (!chunk.hasChecksum()) {
+            return;
+        }
+        List<Chunk> locations = chunks.computeIfAbsent(chunk.getChecksum(), k -> new ArrayList<>(1));
+        if (locations.stream().noneMatch(c -> c == chunk)) {
+            locations.add(chunk);
+        }
+    }
+
+    /**
+     * Removes a chunk, e.g. its bytes did not match the checksum anymore
+     */
+    synchronized public void remove(Chunk chunk) {
+        List<Chunk> locations = chunks.get(chunk.getChecksum());
+        if (locations == null) {
+            return;
+        }
+        locations.removeIf(c -> c == chunk);
+        if (locations.isEmpty()) {
+            chunks.remove(chunk.getChecksum());
+        }
+    }
+
+    /**
+     * @param checksum chunk checksum
+     * @return a local chunk holding the bytes, or null if none is local
+     */
+    synchronized public Chunk findLocal(String checksum) {
+        List<Chunk> locations = chunks.get(checksum);
+        if (locations == null) {
+            return null;
+        }
+        return locations.stream().filter(Chunk::isLocal).findFirst().orElse(null);
+    }
+}
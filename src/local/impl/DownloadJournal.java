@@ -0,0 +1,261 @@
+/*
+ * Copyright (c) 2018. Markus Monz
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package local.impl;
+
+import data.Chunk;
+
+import java.io.BufferedReader;
+import java.io.Closeable;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.BitSet;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.logging.Logger;
+
+/**
+ * Sidecar file of a download file, records which chunks were verified and which
+ * blocks were written. Records get appended in batches by {@link #sync(ChunkFileWriter)},
+ * after the download file itself was forced to disk, so the journal never claims
+ * data which was lost in a crash. Restoring the state needs no re-hashing.
+ * Without forced syncs, records get appended by {@link #append(ChunkFileWriter)} once
+ * the data reached the download file; they survive a crash of the application only.
+ *
+ * Format, one record per line:
+ * header "&lt;fileId&gt; &lt;version&gt; &lt;fileSize&gt;", "C &lt;chunkOffset&gt; &lt;checksum&gt;" verified chunk,
+ * "B &lt;chunkOffset&gt; &lt;block&gt;" written block, "R &lt;chunkOffset&gt;" chunk blocks discarded
+ */
+public class DownloadJournal implements Closeable {
+    private static final Logger log = Logger.getLogger(DownloadJournal.class.getName());
+    public static final String JOURNAL_EXTENSION = ".journal";
+
+    private final Path path;
+    private final String fileId;
+    private final long version;
+    private final long fileSize;
+    private final Map<Long, String> verifiedChunks; // map<chunkOffset, checksum>
+    private final Map<Long, BitSet> receivedBlocks; // map<chunkOffset, blocks>
+    private final Object syncLock = new Object();
+    private StringBuilder pending;
+    private FileChannel channel;
+
+    public DownloadJournal(Path downloadFile, String fileId, long version, long fileSize) {
+        this.path = Paths.get(downloadFile + JOURNAL_EXTENSION);
+        this.fileId = fileId;
+        this.version = version;
+        this.fileSize = fileSize;
+        this.verifiedChunks = new HashMap<>();
+        this.receivedBlocks = new HashMap<>();
+        this.pending = new StringBuilder();
+    }
+
+    /**
+     * Reads the existing journal and rewrites it compacted, afterwards records get appended
+     * @param downloadFileIntact the download file existed with the expected size, otherwise the journal gets discarded
+     * @throws IOException
+     */
+    synchronized public void open(boolean downloadFileIntact) throws IOException {
+        if (Files.exists(path)) {
+            if (downloadFileIntact) {
+                read();
+            } else {
+                log.warning(String.format("Discard journal '%s', its download file was missing or replaced", path));
+            }
+        }
+
+        // compact, only the current state is kept
+        StringBuilder state = new StringBuilder(header());
+        verifiedChunks.forEach((offset, checksum) -> state.append(chunkRecord(offset, checksum)));
+        receivedBlocks.forEach((offset, blocks) -> blocks.stream().forEach(b -> state.append(blockRecord(offset, b))));
+
+        Path tmp = Paths.get(path + ".tmp");
+        try (FileChannel out = FileChannel.open(tmp, StandardOpenOption.CREATE, StandardOpenOption.WRITE, StandardOpenOption.TRUNCATE_EXISTING)) {
+            write(out, state);
+            out.force(false);
+        }
+        Files.move(tmp, path, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+
+        channel = FileChannel.open(path, StandardOpenOption.WRITE, StandardOpenOption.APPEND);
+    }
+
+    private void read() throws IOException {
+        try (BufferedReader reader = Files.newBufferedReader(path, StandardCharsets.UTF_8)) {
+            String line = reader.readLine();
+            if (line == null || ! (line + "\n").equals(header())) {
+                log.warning(String.format("Discard journal '%s', it belongs to another file or version", path));
+                return;
+            }
+            while ((line = reader.readLine()) != null) {
+                String[] record = line.split(" ");
+                try {
+                    if (record[0].equals("C") && record.length == 3) {
+                        verifiedChunks.put(Long.parseLong(record[1]), record[2]);
+                    } else if (record[0].equals("B") && record.length == 3) {
+                        receivedBlocks.computeIfAbsent(Long.parseLong(record[1]), o -> new BitSet()).set(Integer.parseInt(record[2]));
+                    } else if (record[0].equals("R") && record.length == 2) {
+                        receivedBlocks.remove(Long.parseLong(record[1]));
+                    } else {
+                        // last record was torn by a crash
+                        log.warning(String.format("Ignore invalid journal record '%s' in '%s'", line, path));
+                    }
+                } catch (NumberFormatException e) {
+                    log.warning(String.format("Ignore invalid journal record '%s' in '%s'", line, path));
+                }
+            }
+        }
+        log.info(String.format("Read journal '%s', %d verified chunks, %d partial chunks", path, verifiedChunks.size(), receivedBlocks.size()));
+    }
+
+    /**
+     * Applies the recorded state to the given chunks, chunks already local or downloading are skipped
+     * @param chunks chunks of the download file
+     * @return number of chunks restored as local
+     */
+    synchronized public int restore(List<Chunk> chunks) {
+        int restored = 0;
+        for (Chunk chunk : chunks) {
+            if (chunk.isLocal() || chunk.isDownloadActive() || ! chunk.hasChecksum()) {
+                continue;
+            }
+            if (chunk.getChecksum().equals(verifiedChunks.get(chunk.getOffset()))) {
+                chunk.setLocal(true);
+                restored++;
+            } else if (chunk.getReceivedBlockCount() == 0 && receivedBlocks.containsKey(chunk.getOffset())) {
+                receivedBlocks.get(chunk.getOffset()).stream()
+                    .filter(b -> b < chunk.getBlockCount())
+                    .forEach(chunk::setBlockReceived);
+            }
+        }
+        return restored;
+    }
+
+    synchronized public void blockReceived(Chunk chunk, int block) {
+        receivedBlocks.computeIfAbsent(chunk.getOffset(), o -> new BitSet()).set(block);
+        pending.append(blockRecord(chunk.getOffset(), block));
+    }
+
+    synchronized public void chunkVerified(Chunk chunk) {
+        verifiedChunks.put(chunk.getOffset(), chunk.getChecksum());
+        receivedBlocks.remove(chunk.getOffset());
+        pending.append(chunkRecord(chunk.getOffset(), chunk.getChecksum()));
+    }
+
+    synchronized public void chunkCleared(Chunk chunk) {
+        receivedBlocks.remove(chunk.getOffset());
+        pending.append("R ").append(chunk.getOffset()).append('\n');
+    }
+
+    /**
+     * Forces the written data of the download file to disk, then appends the pending records
+     * @param writer writer of the download file
+     * @throws IOException
+     */
+    public void sync(ChunkFileWriter writer) throws IOException {
+        synchronized (syncLock) {
+            StringBuilder records = takePending();
+            if (records == null) {
+                return;
+            }
+            writer.force();
+            write(channel, records);
+            channel.force(false);
+        }
+    }
+
+    /**
+     * Writes the buffered data of the download file, then appends the pending records without forcing either
+     * @param writer writer of the download file
+     * @throws IOException
+     */
+    public void append(ChunkFileWriter writer) throws IOException {
+        synchronized (syncLock) {
+            StringBuilder records = takePending();
+            if (records == null) {
+                return;
+            }
+            writer.flush();
+            write(channel, records);
+        }
+    }
+
+    /**
+     * @return pending records, or null if there are none or the journal is closed
+     */
+    private StringBuilder takePending() {
+        synchronized (this) {
+            if (pending.length() == 0 || channel == null) {
+                return null;
+            }
+            StringBuilder records = pending;
+            pending = new StringBuilder();
+            return records;
+        }
+    }
+
+    /**
+     * Removes the journal, e.g. after the download was finished
+     * @throws IOException
+     */
+    public void delete() throws IOException {
+        close();
+        Files.deleteIfExists(path);
+    }
+
+    @Override
+    public void close() throws IOException {
+        synchronized (syncLock) {
+            if (channel != null) {
+                channel.close();
+                channel = null;
+            }
+        }
+    }
+
+    /**
+     * @return version of the file the download file holds
+     */
+    public long getVersion() {
+        return version;
+    }
+
+    private String header() {
+        return fileId + " " + version + " " + fileSize + "\n";
+    }
+
+    private static String chunkRecord(long offset, String checksum) {
+        return "C " + offset + " " + checksum + "\n";
+    }
+
+    private static String blockRecord(long offset, int block) {
+        return "B " + offset + " " + block + "\n";
+    }
+
+    private static void write(FileChannel channel, CharSequence records) throws IOException {
+        ByteBuffer buf = StandardCharsets.UTF_8.encode(records.toString());
+        while (buf.hasRemaining()) {
+            channel.write(buf);
+        }
+    }
+}
@@ -25,6 +25,8 @@ import local.decl.Observer;
 
 import java.security.MessageDigest;
 import java.security.NoSuchAlgorithmException;
+import java.util.List;
+import java.util.stream.Collectors;
 import java.util.logging.Level;
 import java.util.logging.Logger;
 
@@ -54,7 +56,9 @@ public class FileChecksumObserver implements Observer<FileMetadata> {
 
         // check if all chunks checksums are calculated
         boolean allChecksums = data.getChunks().stream().allMatch(c -> c.hasChecksum());
-        if (!allChecksums) {
+        // content defined chunks exist only after the file got cut
+        boolean complete = data.getChunks().stream().mapToLong(c -> c.getSize()).sum() == data.getFileSize();
+        if (!allChecksums || !complete) {
             return;
         }
 
@@ -77,6 +81,13 @@ public class FileChecksumObserver implements Observer<FileMetadata> {
 
         log.info(String.format("Final checksum of file '%s': %s", data.getFileName(), finalChecksum));
 
+        // calculate file level hash tree root, from the chunks' tree roots
+        if (data.getChunks().stream().allMatch(c -> c.hasTreeRoot())) {
+            List<String> chunkRoots = data.getChunks().stream().map(c -> c.getTreeRoot()).collect(Collectors.toList());
+            data.setTreeRoot(HashTree.root(chunkRoots, checksumAlgorithm));
+            log.info(String.format("Tree root of file '%s': %s", data.getFileName(), data.getTreeRoot()));
+        }
+
         // remove this observer from observer list
         sharedFile.removeObserver(this);
 
@@ -0,0 +1,114 @@
+/*
+ * Copyright (c) 2018. Markus Monz
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package local.impl;
+
+/**
+ * Finds content defined chunk boundaries with a Gear rolling hash, FastCDC style.
+ * Boundaries depend on the bytes before them only, so inserting bytes into a file
+ * moves the boundaries close to the insertion, all later chunks stay the same.
+ *
+ * Normalized chunking: below the average size a stricter mask makes cuts rare,
+ * above it a looser mask makes them likely, chunk sizes concentrate around the average.
+ * The hash of a byte depends on the last 64 bytes only, bytes far below the minimum
+ * size get skipped. The scan loop does not allocate, one instance scans one file.
+ */
+public class GearChunker {
+    private static final int HASH_WINDOW = 64; // bytes shifted out of the hash
+    private static final long[] GEAR = new long[256];
+
+    static {
+        // fixed table, boundaries of a file must not change between runs
+        long seed = 0x5eed_c0de_f00d_cafeL;
+        for (int i = 0; i < GEAR.length; i++) {
+            // splitmix64
+            seed += 0x9e3779b97f4a7c15L;
+            long z = seed;
+            z = (z ^ (z >>> 30)) * 0xbf58476d1ce4e5b9L;
+            z = (z ^ (z >>> 27)) * 0x94d049bb133111ebL;
+            GEAR[i] = z ^ (z >>> 31);
+        }
+    }
+
+    private final long minSize;
+    private final long avgSize;
+    private final long maxSize;
+    private final long strictMask;
+    private final long looseMask;
+    private long hash;
+    private long length; // bytes of the current chunk scanned so far
+
+    public GearChunker(long minSize, long avgSize, long maxSize) {
+        if (minSize <= 0 || minSize > avgSize || avgSize > maxSize) {
+            throw new IllegalArgumentException(String.format("Invalid chunk sizes, min %d, avg %d, max %d", minSize, avgSize, maxSize));
+        }
+        this.minSize = minSize;
+        this.avgSize = avgSize;
+        this.maxSize = maxSize;
+
+        // a cut needs the highest bits of the hash to be zero, 2 bits more or less than the average implies
+        int bits = 63 - Long.numberOfLeadingZeros(avgSize);
+        this.strictMask = highBits(Math.min(63, bits + 2));
+        this.looseMask = highBits(Math.max(1, bits - 2));
+    }
+
+    private static long highBits(int count) {
+        return -1L << (64 - count);
+    }
+
+    /**
+     * Scans bytes for the end of the current chunk, continues where the previous call stopped
+     * @param buf bytes of the file, in order
+     * @param from index of the first byte to scan
+     * @param to index after the last byte to scan
+     * @return count of bytes scanned until the chunk ends, including its last byte,
+     *         or -1 if the chunk does not end within the bytes
+     */
+    public int next(byte[] buf, int from, int to) {
+        long h = hash;
+        long len = length;
+        int i = from;
+
+        // bytes which leave the hash window before the minimum size can not influence a cut
+        long skip = Math.min(to - i, Math.max(0, minSize - HASH_WINDOW - len));
+        i += skip;
+        len += skip;
+
+        for (; i < to; i++) {
+            h = (h << 1) + GEAR[buf[i] & 0xff];
+            len++;
+            if (len < minSize) {
+                continue;
+            }
+            if ((h & (len < avgSize ? strictMask : looseMask)) == 0 || len >= maxSize) {
+                hash = 0;
+                length = 0;
+                return i - from + 1;
+            }
+        }
+
+        hash = h;
+        length = len;
+        return -1;
+    }
+
+    /**
+     * @return bytes of the current chunk scanned so far, the size of the last chunk at the end of a file
+     */
+    public long getLength() {
+        return length;
+    }
+}
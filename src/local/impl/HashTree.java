@@ -0,0 +1,133 @@
+/*
+ * Copyright (c) 2018. Markus Monz
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package local.impl;
+
+import local.ChecksumService;
+
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * Hash tree (Merkle tree) over leaf checksums, e.g. the block checksums of a chunk.
+ * A parent is the hash of its two children's checksums, the last node of a level
+ * without sibling gets promoted unchanged. A single leaf can be verified against
+ * the root with the checksums of its siblings on the way up (proof).
+ */
+public class HashTree {
+    private static final Logger log = Logger.getLogger(HashTree.class.getName());
+
+    private HashTree() {
+    }
+
+    /**
+     * @param leaves leaf checksums
+     * @param algorithm hash algorithm
+     * @return root checksum, or null if there are no leaves
+     */
+    public static String root(List<String> leaves, String algorithm) {
+        MessageDigest md = getDigest(algorithm);
+        if (md == null || leaves.isEmpty()) {
+            return null;
+        }
+        List<String> level = leaves;
+        while (level.size() > 1) {
+            level = parents(level, md);
+        }
+        return level.get(0);
+    }
+
+    /**
+     * @param leaves leaf checksums
+     * @param index index of the leaf to prove
+     * @param algorithm hash algorithm
+     * @return sibling checksums from the leaf up to the root, or null on failure
+     */
+    public static List<String> proof(List<String> leaves, int index, String algorithm) {
+        MessageDigest md = getDigest(algorithm);
+        if (md == null || index < 0 || index >= leaves.size()) {
+            return null;
+        }
+        List<String> proof = new ArrayList<>();
+        List<String> level = leaves;
+        while (level.size() > 1) {
+            int sibling = index % 2 == 0 ? index + 1 : index - 1;
+            if (sibling < level.size()) {
+                proof.add(level.get(sibling));
+            }
+            level = parents(level, md);
+            index /= 2;
+        }
+        return proof;
+    }
+
+    /**
+     * @param leaf checksum of the received leaf
+     * @param index index of the leaf
+     * @param leafCount count of all leaves of the tree
+     * @param proof sibling checksums from the leaf up to the root
+     * @param root expected root checksum
+     * @param algorithm hash algorithm
+     * @return true if the leaf belongs to the tree with the given root
+     */
+    public static boolean verify(String leaf, int index, int leafCount, List<String> proof, String root, String algorithm) {
+        MessageDigest md = getDigest(algorithm);
+        if (md == null || leaf == null || root == null || index < 0 || index >= leafCount) {
+            return false;
+        }
+        String node = leaf;
+        int p = 0;
+        for (int count = leafCount; count > 1; count = (count + 1) / 2, index /= 2) {
+            if (index % 2 == 0 && index == count - 1) {
+                // promoted, no sibling on this level
+                continue;
+            }
+            if (p >= proof.size()) {
+                return false;
+            }
+            String sibling = proof.get(p++);
+            node = index % 2 == 0 ? hash(node, sibling, md) : hash(sibling, node, md);
+        }
+        return p == proof.size() && node.equals(root);
+    }
+
+    private static List<String> parents(List<String> level, MessageDigest md) {
+        List<String> parents = new ArrayList<>((level.size() + 1) / 2);
+        for (int i = 0; i < level.size(); i += 2) {
+            parents.add(i + 1 < level.size() ? hash(level.get(i), level.get(i + 1), md) : level.get(i));
+        }
+        return parents;
+    }
+
+    private static String hash(String left, String right, MessageDigest md) {
+        md.update(left.getBytes());
+        md.update(right.getBytes());
+        return ChecksumService.digestToString(md.digest());
+    }
+
+    private static MessageDigest getDigest(String algorithm) {
+        try {
+            return MessageDigest.getInstance(algorithm);
+        } catch (NoSuchAlgorithmException e) {
+            log.log(Level.WARNING, "Hash algorithm not found!", e);
+            return null;
+        }
+    }
+}
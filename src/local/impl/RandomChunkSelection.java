@@ -0,0 +1,65 @@
+/*
+ * Copyright (c) 2018. Markus Monz
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package local.impl;
+
+import data.Chunk;
+import data.SharedFile;
+import local.decl.ChunkSelectionStrategy;
+import net.data.Pair;
+import net.impl.PeerSelector;
+
+import java.util.List;
+import java.util.Random;
+import java.util.UUID;
+import java.util.stream.Collectors;
+
+/**
+ * Chooses a node by its score, then a random chunk of this node
+ */
+public class RandomChunkSelection implements ChunkSelectionStrategy {
+    private Random random = new Random();
+    private PeerSelector peerSelector = new PeerSelector();
+
+    @Override
+    public Pair<UUID, Chunk> nextChunk(SharedFile sharedFile) {
+        List<UUID> nodeIds = getNextDownloadNodes(sharedFile);
+        if (nodeIds.size() == 0) {
+            return null;
+        }
+        UUID nodeId = peerSelector.select(nodeIds);
+
+        // randomly chose a chunk from this node which gets downloaded next
+        // this chunk must be out of the list of chunks to download
+        List<String> allNodeChunks = sharedFile.getChunksOfReplicaNode(nodeId);
+        List<Chunk> chunksToDownload = sharedFile.getChunksToDownload().stream()
+            .filter(c -> allNodeChunks.contains(c.getChecksum()))
+            .collect(Collectors.toList());
+        if (chunksToDownload.size() == 0) {
+            return null;
+        }
+
+        return new Pair<>(nodeId, chunksToDownload.get(random.nextInt(chunksToDownload.size())));
+    }
+
+    private List<UUID> getNextDownloadNodes(SharedFile sharedFile) {
+        // get nodes which share the chunks remaining for download
+        return sharedFile.getChunksToDownload().stream()
+            .flatMap(c -> sharedFile.getReplicaNodesByChunk(c.getChecksum()).stream())
+            .distinct()
+            .collect(Collectors.toList());
+    }
+}
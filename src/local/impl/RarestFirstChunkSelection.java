@@ -0,0 +1,65 @@
+/*
+ * Copyright (c) 2018. Markus Monz
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package local.impl;
+
+import data.Chunk;
+import data.SharedFile;
+import local.decl.ChunkSelectionStrategy;
+import net.data.Pair;
+import net.impl.PeerSelector;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+import java.util.UUID;
+
+/**
+ * Chooses the chunk shared by the fewest replica nodes, ties get broken randomly. Rare
+ * chunks get replicated first, so the download does not depend on single nodes for long.
+ */
+public class RarestFirstChunkSelection implements ChunkSelectionStrategy {
+    private Random random = new Random();
+    private PeerSelector peerSelector = new PeerSelector();
+
+    @Override
+    public Pair<UUID, Chunk> nextChunk(SharedFile sharedFile) {
+        List<Chunk> rarestChunks = new ArrayList<>();
+        List<List<UUID>> rarestNodeIds = new ArrayList<>();
+        int replicaCount = Integer.MAX_VALUE;
+
+        for (Chunk chunk : sharedFile.getChunksToDownload()) {
+            List<UUID> nodeIds = sharedFile.getReplicaNodesByChunk(chunk.getChecksum());
+            if (nodeIds.isEmpty() || nodeIds.size() > replicaCount) {
+                continue;
+            }
+            if (nodeIds.size() < replicaCount) {
+                replicaCount = nodeIds.size();
+                rarestChunks.clear();
+                rarestNodeIds.clear();
+            }
+            rarestChunks.add(chunk);
+            rarestNodeIds.add(nodeIds);
+        }
+
+        if (rarestChunks.isEmpty()) {
+            return null;
+        }
+        int i = random.nextInt(rarestChunks.size());
+
+        return new Pair<>(peerSelector.select(rarestNodeIds.get(i)), rarestChunks.get(i));
+    }
+}
@@ -0,0 +1,80 @@
+/*
+ * Copyright (c) 2018. Markus Monz
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package local.impl;
+
+import data.Chunk;
+import data.SharedFile;
+import local.decl.ChunkSelectionStrategy;
+import net.data.Pair;
+import net.impl.PeerSelector;
+
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.List;
+import java.util.UUID;
+
+/**
+ * Chooses the chunk with the lowest offset which has a replica node, e.g. to preview a file while downloading.
+ * With a read-ahead window only chunks close to the first missing chunk get downloaded.
+ */
+public class SequentialChunkSelection implements ChunkSelectionStrategy {
+    private PeerSelector peerSelector = new PeerSelector();
+    private int readAhead;
+
+    public SequentialChunkSelection() {
+        this(0);
+    }
+
+    /**
+     * @param readAhead chunks downloaded from the first missing chunk on, 0 is unlimited
+     */
+    public SequentialChunkSelection(int readAhead) {
+        this.readAhead = readAhead;
+    }
+
+    @Override
+    public Pair<UUID, Chunk> nextChunk(SharedFile sharedFile) {
+        List<Chunk> chunksToDownload = sharedFile.getChunksToDownload();
+        chunksToDownload.sort(Comparator.comparingLong(Chunk::getOffset));
+
+        long windowEnd = Long.MAX_VALUE;
+        if (readAhead > 0) {
+            // chunks are counted, content defined chunks differ in size
+            List<Chunk> chunks = new ArrayList<>(sharedFile.getMetadata().getChunks());
+            chunks.sort(Comparator.comparingLong(Chunk::getOffset));
+            // chunks still downloading keep the window in place
+            int firstMissing = 0;
+            while (firstMissing < chunks.size() && chunks.get(firstMissing).isLocal()) {
+                firstMissing++;
+            }
+            if (firstMissing + readAhead < chunks.size()) {
+                windowEnd = chunks.get(firstMissing + readAhead).getOffset();
+            }
+        }
+
+        for (Chunk chunk : chunksToDownload) {
+            if (chunk.getOffset() >= windowEnd) {
+                break;
+            }
+            List<UUID> nodeIds = sharedFile.getReplicaNodesByChunk(chunk.getChecksum());
+            if (nodeIds.size() > 0) {
+                return new Pair<>(peerSelector.select(nodeIds), chunk);
+            }
+        }
+        return null;
+    }
+}
@@ -0,0 +1,111 @@
+/*
+ * Copyright (c) 2018. Markus Monz
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package local.impl;
+
+import java.nio.ByteBuffer;
+import java.util.ArrayDeque;
+import java.util.Deque;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+
+/**
+ * Decouples disk writes of downloads from the network threads. Received bytes get
+ * copied into pooled direct buffers by the {@link ChunkFileWriter}s, and one disk thread
+ * writes filled buffers in the order they were filled. The buffer memory is bounded;
+ * once it is used up, writers accept no more bytes and network readers stop reading.
+ */
+public class WriteBehindStage {
+    public static final int SEGMENT_SIZE = 1024 * 1024; // 1 MByte, unit of buffered writes
+
+    /**
+     * When download files get forced to disk, and their journal records get appended
+     */
+    public enum SyncPolicy {
+        NONE, // only when the download file gets closed, journal records get appended unforced after every verified chunk
+        CHUNK, // after every verified chunk
+        SIZE, // after a number of written bytes
+    }
+
+    private final int maxSegments;
+    private final Deque<ByteBuffer> free;
+    private final ExecutorService disk;
+    private final ExecutorService syncer;
+    private final SyncPolicy syncPolicy;
+    private final long syncSize;
+    private int allocated;
+
+    /**
+     * @param bufferSize budget of buffered bytes, of all download files
+     * @param syncPolicy durability policy
+     * @param syncSize bytes written between syncs, for policy SIZE
+     */
+    public WriteBehindStage(long bufferSize, SyncPolicy syncPolicy, long syncSize) {
+        // two segments at least, so one can be filled while the other gets written
+        this.maxSegments = (int) Math.max(2, bufferSize / SEGMENT_SIZE);
+        this.free = new ArrayDeque<>();
+        this.disk = Executors.newSingleThreadExecutor();
+        this.syncer = Executors.newSingleThreadExecutor();
+        this.syncPolicy = syncPolicy;
+        this.syncSize = syncSize;
+    }
+
+    public SyncPolicy getSyncPolicy() {
+        return syncPolicy;
+    }
+
+    public long getSyncSize() {
+        return syncSize;
+    }
+
+    /**
+     * @return empty buffer, or null if the buffer budget is used up
+     */
+    synchronized ByteBuffer allocate() {
+        ByteBuffer buf = free.poll();
+        if (buf == null && allocated < maxSegments) {
+            buf = ByteBuffer.allocateDirect(SEGMENT_SIZE);
+            allocated++;
+        }
+        return buf;
+    }
+
+    synchronized void recycle(ByteBuffer buf) {
+        buf.clear();
+        free.push(buf);
+    }
+
+    /**
+     * @return count of buffers which are in use
+     */
+    synchronized public int getUsedSegments() {
+        return allocated - free.size();
+    }
+
+    /**
+     * Runs a write on the disk thread, writes run in submission order
+     */
+    void write(Runnable write) {
+        disk.execute(write);
+    }
+
+    /**
+     * Runs a sync off the disk thread, it waits for the disk thread to write the buffered bytes
+     */
+    void sync(Runnable sync) {
+        syncer.execute(sync);
+    }
+}
@@ -41,11 +41,28 @@ public class Sharer {
     public static final String SHARE_INFO_PERIOD = "sharer_share_info_period";
     public static final String NODE_CLEANUP_RATE = "sharer_discovery_node_cleanup_period";
     public static final String CMD_PORT = "sharer_cmd_port";
+    public static final String DATA_PORT = "sharer_data_port";
+    public static final String TRANSFER_THREADS = "sharer_transfer_threads";
 
     public static final String MAX_DOWNLOADS = "sharer_max_downloads";
     public static final String MAX_UPLOADS = "sharer_max_uploads";
     public static final String DOWNLOAD_DIRECTORY = "sharer_download_directory";
     public static final String CHECKSUM_ALGORITHM = "sharer_checksum_algorithm";
+    public static final String UPLOAD_CACHE_SIZE = "sharer_upload_cache_size";
+    public static final String UPLOAD_RATE = "sharer_upload_rate";
+    public static final String DOWNLOAD_RATE = "sharer_download_rate";
+    public static final String PEER_UPLOAD_RATE = "sharer_peer_upload_rate";
+    public static final String PEER_DOWNLOAD_RATE = "sharer_peer_download_rate";
+    public static final String RATE_BURST = "sharer_rate_burst";
+    public static final String CHUNK_SELECTION = "sharer_chunk_selection";
+    public static final String READ_AHEAD = "sharer_read_ahead";
+    public static final String WRITE_BUFFER_SIZE = "sharer_write_buffer_size";
+    public static final String SYNC_POLICY = "sharer_sync_policy";
+    public static final String SYNC_SIZE = "sharer_sync_size";
+    public static final String CHUNKING = "sharer_chunking";
+    public static final String CDC_MIN_SIZE = "sharer_cdc_min_size";
+    public static final String CDC_AVG_SIZE = "sharer_cdc_avg_size";
+    public static final String CDC_MAX_SIZE = "sharer_cdc_max_size";
 
     private static final Logger log = Logger.getLogger(Sharer.class.getName());
 
@@ -84,16 +101,25 @@ public class Sharer {
         ShareCommandReceiverService shareCommandReceiverService = ((ShareCommandReceiverService) serviceLocator.getService(ServiceLocator.SHARED_CMD_RECEIVER_SERVICE));
         shareCommandReceiverService.start();
 
+        // start transfer service, uploads are served by the share service
+        TransferService transferService = ((TransferService) serviceLocator.getService(ServiceLocator.TRANSFER_SERVICE));
+        transferService.setUploadProvider((ShareService) serviceLocator.getService(ServiceLocator.SHARE_SERVICE));
+        transferService.start();
+
         // start share info file service
         SharedFileInfoService sharedFileInfoService = ((SharedFileInfoService) serviceLocator.getService(ServiceLocator.SHARED_FILE_INFO_SERVICE));
         sharedFileInfoService.start();
 
         // register observer for shared files
         SharedFileService sharedFileService = ((SharedFileService) serviceLocator.getService(ServiceLocator.SHARED_FILE_SERVICE));
-        sharedFileService.addFileListener((ShareService)serviceLocator.getService(ServiceLocator.SHARE_SERVICE));
+        ShareService shareService = (ShareService)serviceLocator.getService(ServiceLocator.SHARE_SERVICE);
+        sharedFileService.addFileListener(shareService);
 
-        // set Sharer id on gui
+        // new nodes can make downloads possible
         NetworkService networkService = ((NetworkService)serviceLocator.getService(ServiceLocator.NETWORK_SERVICE));
+        networkService.addNodeStateListener(shareService);
+
+        // set Sharer id on gui
         OverviewController.getInstance().updateSharerId(networkService.getLocalNodeId().toString());
 
         // register listener for gui
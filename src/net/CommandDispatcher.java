@@ -63,6 +63,16 @@ public class CommandDispatcher {
                         log.fine("Received download request: " + ((DownloadRequest)cmd.getData().get(0)).getChunkChecksum());
                         cmd.getData().forEach(o -> SHARE_SERVICE.addUpload((DownloadRequest)o));
                         break;
+                    case CANCEL:
+                        for (Object o : cmd.getData()) {
+                            if (o instanceof DownloadRequest) {
+                                log.fine("Received cancel of download request: " + ((DownloadRequest) o).getChunkChecksum());
+                                SHARE_SERVICE.cancelUpload((DownloadRequest) o);
+                            } else {
+                                log.warning("Malformed cancel of download request: " + o);
+                            }
+                        }
+                        break;
                     case DOWNLOAD_REQUEST_RESULT:
                         //log.info(String.format("Received download request result for file '%s'", data.get(0).getFileId()));
                         cmd.getData().forEach(o -> SHARE_SERVICE.addDownload((DownloadRequestResult)o));
@@ -112,6 +122,7 @@ public class CommandDispatcher {
             Type type;
             switch(cmdType) {
                 case DOWNLOAD_REQUEST:
+                case CANCEL:
                     type = new TypeToken<ShareCommand<DownloadRequest>>() {}.getType();
                     break;
                 case DOWNLOAD_REQUEST_RESULT:
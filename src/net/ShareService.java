@@ -17,82 +17,140 @@
 package net;
 
 import data.Chunk;
+import data.FilePriority;
 import data.SharedFile;
 import local.ChecksumService;
 import local.ServiceLocator;
 import local.SharedFileService;
 import local.decl.AddFileListener;
+import local.decl.ChunkSelectionStrategy;
+import local.decl.NodeStateListener;
+import local.impl.ChunkCache;
+import local.impl.ChunkFileWriter;
+import local.impl.HashTree;
 import local.impl.ObserverCmd;
+import local.impl.RarestFirstChunkSelection;
+import local.impl.SequentialChunkSelection;
+import local.impl.WriteBehindStage;
+import net.impl.ChunkDownloader;
+import net.impl.DownloadConcurrencyController;
+import net.impl.UploadChoker;
 import net.data.*;
+import net.decl.TransferCallback;
+import net.decl.UploadProvider;
 import ui.Overview;
 import ui.controller.ChunkDownloadProgressController;
 import ui.controller.OverviewController;
 
 import java.io.*;
-import java.net.InetAddress;
-import java.net.ServerSocket;
-import java.net.Socket;
-import java.net.SocketTimeoutException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
 import java.nio.file.Files;
 import java.nio.file.Paths;
 import java.nio.file.StandardCopyOption;
-import java.security.MessageDigest;
-import java.security.NoSuchAlgorithmException;
+import java.nio.file.StandardOpenOption;
 import java.util.*;
 import java.util.concurrent.*;
-import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicBoolean;
 import java.util.logging.Level;
 import java.util.logging.Logger;
-import java.util.stream.IntStream;
 
-public class ShareService implements AddFileListener {
+public class ShareService implements AddFileListener, NodeStateListener, UploadProvider {
     private static final Logger log = Logger.getLogger(ShareService.class.getName());
     private static final NetworkService NETWORK_SERVICE = (NetworkService) ServiceLocator.getInstance().getService(ServiceLocator.NETWORK_SERVICE);
     private static final SharedFileService SHARED_FILE_SERVICE = (SharedFileService) ServiceLocator.getInstance().getService(ServiceLocator.SHARED_FILE_SERVICE);
     private static final ChecksumService CHECKSUM_SERVICE = (ChecksumService) ServiceLocator.getInstance().getService(ServiceLocator.CHECKSUM_SERVICE);
+    private static final TransferService TRANSFER_SERVICE = (TransferService) ServiceLocator.getInstance().getService(ServiceLocator.TRANSFER_SERVICE);
 
     private static final int SOCKET_TIMEOUT = (int) TimeUnit.MILLISECONDS.convert(10, TimeUnit.SECONDS); // todo: load from config
-    private static final int BUFFER_SIZE = 4096;
     private static final int DENY_DOWNLOAD = -1;
     private static final String LOCAL_NODE_ID = NETWORK_SERVICE.getLocalNodeId().toString();
     private static final String DOWNLOAD_EXTENSION = ".part";
     private static final long RESCHEDULE_THRESHOLD = TimeUnit.MILLISECONDS.convert(15, TimeUnit.SECONDS);
+    private static final int MAX_SOURCES_PER_CHUNK = 3;
+    private static final int ENDGAME_CHUNKS = 4; // missing chunks of a file, which get downloaded from several nodes
+    private static final long RECHOKE_PERIOD = TimeUnit.SECONDS.toMillis(10);
+    private static final int UPLOAD_QUEUE_FACTOR = 4; // queued requests per upload slot
+    private static final long UPLOAD_QUEUE_TIMEOUT = TimeUnit.SECONDS.toMillis(60);
+    private static final double RELEASE_INTERVAL_WEIGHT = 0.3;
 
     private ExecutorService requester;
     private ExecutorService downloader;
     private ExecutorService uploader;
+    private ExecutorService localCopier;
     private ScheduledExecutorService rescheduler;
     private ScheduledExecutorService statisticsUpdater;
+    private DownloadConcurrencyController downloadConcurrency;
     private Semaphore downloadToken;
     private Semaphore uploadToken;
+    private UploadChoker uploadChoker;
+    private Map<String, Pair<DownloadRequest, Long>> uploadQueue; // map<uploadKey, request and queue time>, in arrival order
+    private double releaseInterval; // moving average of the time between freed upload slots
+    private long lastRelease;
 
-    private int maxConcurrentDownloads;
     private int maxConcurrentUploads;
     private String checksumAlgorithm;
-    private AtomicInteger downloadNodeRound;
-
-    public ShareService(int maxConcurrentDownloads, int maxConcurrentUploads, String checksumAlgorithm) {
+    private volatile ChunkSelectionStrategy chunkSelection;
+    private volatile ChunkSelectionStrategy streamSelection; // files downloaded in sequential mode
+    private int dataPort;
+    private ConcurrentMap<String, Long> admittedUploads; // map<uploadKey, admission time>
+    private Map<String, ChunkFileWriter> fileWriters;
+    private WriteBehindStage writeBehind;
+    private ConcurrentMap<String, ChunkDownloader> chunkDownloaders; // map<fileId/chunkOffset, downloader>
+    private Map<String, Long> readyFiles; // map<fileId, generation>, files with chunks to download, in round robin order
+    private long readyGeneration;
+    private AtomicBoolean fillPending;
+
+    public ShareService(int dataPort, int maxConcurrentDownloads, int maxConcurrentUploads, String checksumAlgorithm,
+                        WriteBehindStage writeBehind) {
         this.requester = Executors.newSingleThreadExecutor();
-        this.downloader = Executors.newFixedThreadPool(maxConcurrentDownloads);
-        this.uploader = Executors.newFixedThreadPool(maxConcurrentUploads);
+        // transfers run on the transfer service, these only handle requests and their answers
+        this.downloader = Executors.newSingleThreadExecutor();
+        this.uploader = Executors.newSingleThreadExecutor();
+        // chunks found in local files get copied, not transferred
+        this.localCopier = Executors.newSingleThreadExecutor();
         this.rescheduler = Executors.newSingleThreadScheduledExecutor();
         this.statisticsUpdater = Executors.newSingleThreadScheduledExecutor();
         rescheduler.scheduleAtFixedRate(reschedule, 0, TimeUnit.SECONDS.toMillis(10), TimeUnit.MILLISECONDS);
+        rescheduler.scheduleAtFixedRate(expireUploads, SOCKET_TIMEOUT, SOCKET_TIMEOUT / 2, TimeUnit.MILLISECONDS);
+        rescheduler.scheduleAtFixedRate(rebalanceDownloads, 1, 1, TimeUnit.SECONDS);
+        rescheduler.scheduleAtFixedRate(writeIdleDownloads, 1, 1, TimeUnit.SECONDS);
+        // disk space may get freed by others
+        rescheduler.scheduleAtFixedRate(admitWaitingDownloads, 10, 10, TimeUnit.SECONDS);
         statisticsUpdater.scheduleAtFixedRate(updateStatistics, 0, TimeUnit.SECONDS.toMillis(1), TimeUnit.MILLISECONDS);
-        this.downloadToken = new Semaphore(maxConcurrentDownloads);
+        // download limit starts at the configured maximum and adapts to the network
+        this.downloadConcurrency = new DownloadConcurrencyController(maxConcurrentDownloads);
+        this.downloadToken = downloadConcurrency.getTokens();
+        rescheduler.scheduleAtFixedRate(() -> {
+            downloadConcurrency.adjust();
+            // a raised limit frees slots
+            scheduleDownloads();
+        }, 5, 5, TimeUnit.SECONDS);
         this.uploadToken = new Semaphore(maxConcurrentUploads);
+        this.uploadChoker = new UploadChoker(maxConcurrentUploads);
+        this.uploadQueue = new LinkedHashMap<>();
+        rescheduler.scheduleAtFixedRate(uploadChoker::rechoke, RECHOKE_PERIOD, RECHOKE_PERIOD, TimeUnit.MILLISECONDS);
 
-        this.maxConcurrentDownloads = maxConcurrentDownloads;
         this.maxConcurrentUploads = maxConcurrentUploads;
         this.checksumAlgorithm = checksumAlgorithm;
-        this.downloadNodeRound = new AtomicInteger();
+        this.chunkSelection = new RarestFirstChunkSelection();
+        this.streamSelection = new SequentialChunkSelection();
+        this.dataPort = dataPort;
+        this.admittedUploads = new ConcurrentHashMap<>();
+        this.fileWriters = new HashMap<>();
+        this.writeBehind = writeBehind;
+        this.chunkDownloaders = new ConcurrentHashMap<>();
+        this.readyFiles = new LinkedHashMap<>();
+        this.fillPending = new AtomicBoolean();
     }
 
     private Runnable reschedule = () -> {
+        // safety net only, chunk downloaders time out their sources by round trip time and inactivity
         log.info("Reschedule service started");
         long currentTime = System.currentTimeMillis();
         SHARED_FILE_SERVICE.getAll().values().stream()
             .forEach(sf -> sf.getActiveDownloadingChunks().stream()
+                .filter(c -> ! chunkDownloaders.containsKey(downloadKey(c)))
                 .filter(c -> {
                         log.info("Check reschedule threshold timeout for chunk: " + c.getChecksum() + " and is: " + (currentTime - c.getWaitSince()));
                         return c.getWaitSince() < 0 ? false : (currentTime - c.getWaitSince()) > RESCHEDULE_THRESHOLD;
@@ -100,12 +158,51 @@ public class ShareService implements AddFileListener {
                 .forEach(c -> {
                     // reschedule chunk download for timed out chunk requests
                     log.warning("Reschedule chunk: " + c.getChecksum());
+                    downloadConcurrency.congestion();
                     downloadFail(c);
                 }));
     };
 
+    private Runnable expireUploads = () -> {
+        // release upload tokens of admitted uploads the downloader stopped requesting
+        long currentTime = System.currentTimeMillis();
+        admittedUploads.forEach((key, admittedSince) -> {
+            if ((currentTime - admittedSince) > SOCKET_TIMEOUT && admittedUploads.remove(key, admittedSince)) {
+                log.warning("Admitted upload was not requested or released in time: " + key);
+                uploadFail();
+            }
+        });
+
+        // downloaders stopped waiting for queued requests long ago
+        synchronized (uploadQueue) {
+            uploadQueue.values().removeIf(q -> (currentTime - q.getValue()) > UPLOAD_QUEUE_TIMEOUT);
+        }
+    };
+
+    private Runnable rebalanceDownloads = () -> {
+        // move blocks of stalled sources to the other sources of a chunk
+        chunkDownloaders.values().forEach(ChunkDownloader::rebalance);
+
+        // endgame, request outstanding chunks from more nodes as they become known
+        chunkDownloaders.values().forEach(cd -> {
+            SharedFile sharedFile = SHARED_FILE_SERVICE.getFile(cd.getChunk().getFileId());
+            if (sharedFile != null && isEndgame(sharedFile)) {
+                requestFromMoreNodes(cd, sharedFile, cd.getChunk());
+            }
+        });
+    };
+
+    private Runnable writeIdleDownloads = () -> {
+        // buffered bytes of stalled sources must not wait forever, syncs follow the sync policy
+        List<ChunkFileWriter> writers;
+        synchronized (fileWriters) {
+            writers = new ArrayList<>(fileWriters.values());
+        }
+        writers.forEach(ChunkFileWriter::writeIdle);
+    };
+
     private Runnable updateStatistics = () -> {
-        Map<String, Long> statistics = new HashMap<>();
+        Map<String, Object> statistics = new HashMap<>();
 
         long count = SHARED_FILE_SERVICE.getAll().values().stream().mapToLong(sf -> sf.getActiveDownloadingChunks().size()).sum();
         statistics.put(OverviewController.STAT_ACTIVE_CHUNKS, count);
@@ -128,9 +225,65 @@ public class ShareService implements AddFileListener {
         statistics.put(OverviewController.STAT_SHARED_FILES_WITH_CHECKSUM, count);
         log.fine(String.format("SharedFiles with checksum: %d", count));
 
+        statistics.put(OverviewController.STAT_DOWNLOAD_LIMIT, (long) downloadConcurrency.getLimit());
+        statistics.put(OverviewController.STAT_DOWNLOAD_LIMIT_HISTORY, downloadConcurrency.getHistory());
+        statistics.put(OverviewController.STAT_DOWNLOAD_GOODPUT, downloadConcurrency.getGoodput() / 1024);
+        log.fine(String.format("Download limit %d, goodput %d kByte/s", downloadConcurrency.getLimit(), downloadConcurrency.getGoodput() / 1024));
+
+        ChunkCache chunkCache = SHARED_FILE_SERVICE.getChunkCache();
+        statistics.put(OverviewController.STAT_CACHE_HITS, chunkCache.getHits());
+        statistics.put(OverviewController.STAT_CACHE_MISSES, chunkCache.getMisses());
+        log.fine(String.format("Upload cache block request hits %d, misses %d, cached bytes %d", chunkCache.getHits(), chunkCache.getMisses(), chunkCache.getCachedBytes()));
+
         OverviewController.getInstance().updateSharerStatistics(statistics);
+        OverviewController.getInstance().updateNodeScores(new ArrayList<>(NETWORK_SERVICE.getAllNodes().values()));
     };
 
+    /**
+     * @param chunkSelection policy choosing the next chunk to download, applies to the next request
+     */
+    public void setChunkSelection(ChunkSelectionStrategy chunkSelection) {
+        this.chunkSelection = chunkSelection;
+    }
+
+    /**
+     * @param streamSelection policy for files in sequential mode, e.g. with a read-ahead window
+     */
+    public void setStreamSelection(ChunkSelectionStrategy streamSelection) {
+        this.streamSelection = streamSelection;
+    }
+
+    /**
+     * Files of higher priority get free download slots first
+     * @param fileId file to download
+     * @param priority priority class
+     */
+    public void setFilePriority(String fileId, FilePriority priority) {
+        SharedFile sharedFile = SHARED_FILE_SERVICE.getFile(fileId);
+        if (sharedFile == null) {
+            return;
+        }
+        log.info(String.format("Set download priority of file '%s' to %s", sharedFile.getFilename(), priority));
+        sharedFile.setPriority(priority);
+        fileReady(sharedFile);
+        scheduleDownloads();
+    }
+
+    /**
+     * @param fileId file to download
+     * @param sequential true to download chunks in offset order, within the read-ahead window
+     */
+    public void setSequential(String fileId, boolean sequential) {
+        SharedFile sharedFile = SHARED_FILE_SERVICE.getFile(fileId);
+        if (sharedFile == null) {
+            return;
+        }
+        log.info(String.format("Set sequential download of file '%s' to %b", sharedFile.getFilename(), sequential));
+        sharedFile.setSequential(sequential);
+        fileReady(sharedFile);
+        scheduleDownloads();
+    }
+
     @Override
     public void addedLocalFile(SharedFile sharedFile) {
         // nothing to download
@@ -155,13 +308,27 @@ public class ShareService implements AddFileListener {
                 }
                 sharedFile.activateDownload();
 
-                if (isFileDownloadedCorrectly(sharedFile)) {
+                if (sharedFile.getMetadata().getChunks().stream().anyMatch(Chunk::isLocal) || sharedFile.hasMovedChunks()) {
+                    // a new version of a downloaded file, changed chunks get downloaded into the existing copy
+                    try {
+                        log.info(String.format("Update file '%s' to version %d", sharedFile.getFilePath(), sharedFile.getMetadata().getVersion()));
+                        SHARED_FILE_SERVICE.getChunkCache().invalidate(sharedFile.getFileId());
+                        Files.move(Paths.get(sharedFile.getFilePath()), Paths.get(sharedFile.getFilePath() + DOWNLOAD_EXTENSION), StandardCopyOption.REPLACE_EXISTING);
+                    } catch (IOException e) {
+                        log.log(Level.WARNING, String.format("Could not update file '%s'", sharedFile.getFilePath()), e);
+                        sharedFile.deactivateDownload();
+                        return;
+                    }
+                    // download jobs get scheduled below
+                } else if (isFileDownloadedCorrectly(sharedFile)) {
                     sharedFile.deactivateDownload();
+                    indexLocalChunks(sharedFile);
                     return;
                 } else {
                     // delete corrupt file
                     try {
                         log.info(String.format("Delete corrupt file '%s'", sharedFile.getFilePath()));
+                        SHARED_FILE_SERVICE.getChunkCache().invalidate(sharedFile.getFileId());
                         Files.delete(Paths.get(sharedFile.getFilePath()));
                     } catch (IOException e) {
                         log.log(Level.WARNING, String.format("Could not delete corrupt file '%s'", sharedFile.getFilePath()), e);
@@ -171,37 +338,203 @@ public class ShareService implements AddFileListener {
                 }
             }
         } else if (sharedFile.isDownloadActive()) {
+            if (isPreviousVersion(sharedFile)) {
+                // a new version arrived while the file was downloading
+                restartDownload(sharedFile);
+                return;
+            }
             // download already active
             log.log(Level.INFO, String.format("Download of file '%s' already active!", sharedFile.getFilename()));
             log.log(Level.INFO, String.format("Missing chunks for active file download: %d", sharedFile.getChunksToDownload().size()));
+            // newly announced chunks may have been downloaded before a restart
+            if (!restoreDownloadState(sharedFile)) {
+                // new chunks or replica nodes may be available
+                fileReady(sharedFile);
+                scheduleDownloads();
+            }
             return;
         } else {
             sharedFile.activateDownload();
         }
 
-        // check if enough disk space left
-        boolean enoughSpaceLeft;
-        try {
-            long availableDiskSpace = Files.getFileStore(Paths.get(SHARED_FILE_SERVICE.getDownloadDirectory())).getUsableSpace();
-            enoughSpaceLeft = (availableDiskSpace - sharedFile.getFileSize()) > 0;
-
-            // add download observer, only once
+        // add download observer, only once, downloads of new versions of the file keep it
+        if (!sharedFile.hasObserver(ChunkDownloadProgressController.class)) {
             sharedFile.addObserver(new ChunkDownloadProgressController());
+        }
+
+        // check if enough disk space left, otherwise the download waits for space
+        if (SHARED_FILE_SERVICE.reserveSpace(sharedFile)) {
+            startDownload(sharedFile);
+        }
+    }
+
+    private void startDownload(SharedFile sharedFile) {
+        // open download file once, preallocated to its final size
+        try {
+            ChunkFileWriter writer = getFileWriter(sharedFile);
+            // e.g. unchanged chunks of a previous version of the file
+            sharedFile.getMetadata().getChunks().stream()
+                .filter(Chunk::isLocal)
+                .forEach(writer.getJournal()::chunkVerified);
+            // before downloads overwrite the previous offsets of moved chunks
+            if (relocateMovedChunks(sharedFile, writer) && sharedFile.isLocal()) {
+                finishFileDownload(sharedFile);
+                return;
+            }
         } catch (IOException e) {
-            log.log(Level.WARNING, "Could not determine remaining disk space", e);
+            log.log(Level.SEVERE, String.format("Could not create download file for '%s'", sharedFile.getFilename()), e);
+            SHARED_FILE_SERVICE.releaseSpace(sharedFile.getFileId());
+            sharedFile.deactivateDownload();
             return;
         }
 
-        if (enoughSpaceLeft) {
-            // add download job for each chunk
-            IntStream.range(0, Chunk.getChunkCount(sharedFile.getFileSize()))
-                .forEach(c -> requester.execute(requestDownload()));
-        } else {
-            // do not add to download queue
-            log.warning("Not enough disk space left to download file");
+        // resume download state of a previous run, without re-hashing the download file
+        if (restoreDownloadState(sharedFile)) {
+            return;
+        }
+
+        fileReady(sharedFile);
+        scheduleDownloads();
+    }
+
+    /**
+     * Copies local chunks of the previous version, whose bytes moved in the new version of the file,
+     * to their new offsets within the download file. A move waits while its target overlaps bytes
+     * other moves still have to read; moves blocking each other, and chunks moved beyond the
+     * end of a shrunk file, get downloaded instead.
+     * @return true if chunks got relocated
+     */
+    private boolean relocateMovedChunks(SharedFile sharedFile, ChunkFileWriter writer) {
+        List<Chunk> moved = sharedFile.takeMovedChunks();
+        if (moved.isEmpty()) {
+            return false;
+        }
+
+        // pair<chunk of the previous version, chunk of the new version>
+        List<Pair<Chunk, Chunk>> moves = new ArrayList<>();
+        for (Chunk chunk : sharedFile.getChunksToDownload()) {
+            moved.stream()
+                .filter(m -> m.equals(chunk) && m.getOffset() + m.getSize() <= sharedFile.getFileSize())
+                .findFirst()
+                .ifPresent(m -> moves.add(new Pair<>(m, chunk)));
+        }
+        // chunks moving towards the end first, from the last one, then the others from the first one;
+        // bytes inserted or removed at one place move all following chunks by the same distance
+        moves.sort(Comparator.comparingLong(m -> m.getValue().getOffset() > m.getKey().getOffset()
+            ? -1 - m.getValue().getOffset() : m.getValue().getOffset()));
+
+        List<Chunk> relocated = new ArrayList<>();
+        boolean progress = true;
+        while (!moves.isEmpty() && progress) {
+            progress = false;
+            Iterator<Pair<Chunk, Chunk>> it = moves.iterator();
+            while (it.hasNext()) {
+                Pair<Chunk, Chunk> move = it.next();
+                Chunk target = move.getValue();
+                // a target may overlap its own source, not bytes other moves still have to read
+                if (moves.stream().anyMatch(m -> m != move && overlaps(m.getKey(), target))) {
+                    continue;
+                }
+                it.remove();
+                progress = true;
+                if (relocateChunk(sharedFile, writer, move.getKey(), target)) {
+                    relocated.add(target);
+                }
+            }
+        }
+
+        // previous offsets get overwritten by downloads from now on
+        moved.forEach(SHARED_FILE_SERVICE.getChunkIndex()::remove);
+        relocated.forEach(SHARED_FILE_SERVICE.getChunkIndex()::add);
+        if (relocated.isEmpty()) {
+            return false;
+        }
+        writer.chunkCompleted();
+        log.info(String.format("Relocated %d moved chunks of file '%s', %d moved chunks get downloaded",
+            relocated.size(), sharedFile.getFilename(), moves.size()));
+        sharedFile.notifyObservers(sharedFile.getMetadata(), ObserverCmd.UPDATE);
+        return true;
+    }
+
+    private static boolean overlaps(Chunk a, Chunk b) {
+        return a.getOffset() < b.getOffset() + b.getSize() && b.getOffset() < a.getOffset() + a.getSize();
+    }
+
+    private boolean relocateChunk(SharedFile sharedFile, ChunkFileWriter writer, Chunk source, Chunk target) {
+        try {
+            writer.move(source.getOffset(), target.getOffset(), target.getSize());
+
+            // like copies from other files, the bytes get verified at their new offset
+            List<String> blockChecksums = new ArrayList<>(target.getBlockCount());
+            String checksum = CHECKSUM_SERVICE.calculateChecksum(writer.getPath().toString(), target.getOffset(), target.getSize(), blockChecksums);
+            if (target.getChecksum().equals(checksum)) {
+                target.setBlockChecksums(blockChecksums);
+                target.setLocal(true);
+                writer.getJournal().chunkVerified(target);
+                return true;
+            }
+            log.warning(String.format("Moved chunk %s of file '%s' does not match its checksum, download it", target.getChecksum(), sharedFile.getFilename()));
+        } catch (IOException e) {
+            log.log(Level.WARNING, String.format("Could not relocate chunk %s of file '%s', download it", target.getChecksum(), sharedFile.getFilename()), e);
+        }
+        return false;
+    }
+
+    /**
+     * @return true if the download file was opened for a previous version of the file
+     */
+    private boolean isPreviousVersion(SharedFile sharedFile) {
+        synchronized (fileWriters) {
+            ChunkFileWriter writer = fileWriters.get(sharedFile.getFileId());
+            return writer != null && writer.getJournal().getVersion() != sharedFile.getMetadata().getVersion();
         }
     }
 
+    /**
+     * Drops the chunk downloads of the previous version of the file, and reopens the download file
+     * resized to the new version, with a journal of the new version. Unchanged local chunks are kept.
+     */
+    private void restartDownload(SharedFile sharedFile) {
+        log.info(String.format("File '%s' changed to version %d while downloading, restart download",
+            sharedFile.getFilename(), sharedFile.getMetadata().getVersion()));
+
+        // downloaders of replaced chunks must not write into the download file anymore
+        String prefix = sharedFile.getFileId() + "/";
+        for (String key : new ArrayList<>(chunkDownloaders.keySet())) {
+            ChunkDownloader chunkDownloader = key.startsWith(prefix) ? chunkDownloaders.remove(key) : null;
+            if (chunkDownloader != null && chunkDownloader.cancel()) {
+                downloadDropped(chunkDownloader.getChunk());
+            }
+        }
+        // buffered bytes of the previous version get written, recorded progress is dropped
+        closeFileWriter(sharedFile);
+
+        startDownload(sharedFile);
+    }
+
+    private Runnable admitWaitingDownloads = () -> {
+        try {
+            SHARED_FILE_SERVICE.admitWaitingDownloads().forEach(this::startDownload);
+        } catch (Exception e) {
+            log.log(Level.SEVERE, "Ooops!", e);
+        }
+    };
+
+    @Override
+    public void addNode(Node node) {
+        // the node may share chunks of files which had no source,
+        // not on the caller's thread, it holds the network service lock
+        requester.execute(() -> {
+            SHARED_FILE_SERVICE.getNotLocal().forEach(this::fileReady);
+            scheduleDownloads();
+        });
+    }
+
+    @Override
+    public void removeNode(Node node) {
+        // chunks requested from the node time out and get rescheduled
+    }
+
     public void addDownload(DownloadRequestResult downloadRequestResult) {
         downloader.execute(download(downloadRequestResult));
     }
@@ -210,294 +543,560 @@ public class ShareService implements AddFileListener {
         uploader.execute(upload(downloadRequest));
     }
 
-    private Runnable requestDownload() {
-        return () -> {
-            List<SharedFile> sfs = SHARED_FILE_SERVICE.getNotLocal();
-            if (sfs.isEmpty()) {
-                log.warning("No chunks to download, but files are not local yet, waiting for more information!");
-                // there is no token to release
-                downloadFail(null, false, false);
-                try {
-                    Thread.sleep(500);
-                } catch (InterruptedException e) {
-                    e.printStackTrace();
+    /**
+     * The downloader withdrew its request, frees the queue position or upload slot of the request
+     */
+    public void cancelUpload(DownloadRequest downloadRequest) {
+        uploader.execute(() -> {
+            String key = uploadKey(downloadRequest);
+            synchronized (uploadQueue) {
+                if (uploadQueue.remove(key) != null) {
+                    log.info("Withdrawn queued download request: " + key);
                 }
-                return;
             }
+            if (admittedUploads.remove(key) != null) {
+                log.info("Withdrawn admitted upload: " + key);
+                uploadFail();
+            }
+        });
+    }
 
-            SharedFile sharedFile = sfs.get(new Random().nextInt(sfs.size()));
-            log.info(String.format("Remaining chunks to download: %d", sharedFile.getChunksToDownload().size()));
+    /**
+     * Marks the file as having chunks to download, e.g. new chunks or replica nodes became known
+     */
+    private void fileReady(SharedFile sharedFile) {
+        synchronized (readyFiles) {
+            readyFiles.put(sharedFile.getFileId(), ++readyGeneration);
+        }
+    }
 
-            // take download token (blocking)
-            try {
-                boolean acquired = downloadToken.tryAcquire(10, TimeUnit.SECONDS);
-                if (!acquired) {
-                    log.warning("Download token acquire timed out!");
-                    // there is no token to release
-                    downloadFail(null, false, false);
-                    return;
+    /**
+     * Fills the free download slots, gets called on every event which can make a download possible
+     */
+    private void scheduleDownloads() {
+        // coalesce events, one pending fill covers them all
+        if (fillPending.compareAndSet(false, true)) {
+            requester.execute(fillDownloadSlots);
+        }
+    }
+
+    private Runnable fillDownloadSlots = () -> {
+        fillPending.set(false);
+        try {
+            while (downloadToken.tryAcquire()) {
+                if (!requestNextChunk()) {
+                    // nothing ready, the next event fills the slot
+                    downloadToken.release();
+                    break;
                 }
-            } catch (InterruptedException e) {
-                log.log(Level.WARNING, "Request download was interrupted", e);
-                return;
             }
+        } catch (Exception e) {
+            log.log(Level.SEVERE, "Ooops!", e);
+        }
+    };
 
-            int round = downloadNodeRound.get() < maxConcurrentDownloads ? downloadNodeRound.getAndIncrement() : downloadNodeRound.getAndSet(0);
-            Pair<UUID, Chunk> downloadInfo = sharedFile.getNextChunkToDownload(round);
-
-            if (downloadInfo == null) {
-                log.info("Choose next chunk to download failed");
-                downloadFail(null);
-                try {
-                    Thread.sleep(100);
-                } catch (InterruptedException e) {
-                    e.printStackTrace();
+    /**
+     * Requests the next chunk of the ready files of the highest priority, round robin across these files
+     * @return false if no file has a chunk to download right now
+     */
+    private boolean requestNextChunk() {
+        while (true) {
+            String fileId = null;
+            long generation = 0;
+            FilePriority priority = null;
+            synchronized (readyFiles) {
+                for (Map.Entry<String, Long> ready : readyFiles.entrySet()) {
+                    SharedFile sharedFile = SHARED_FILE_SERVICE.getFile(ready.getKey());
+                    FilePriority p = sharedFile == null ? FilePriority.NORMAL : sharedFile.getPriority();
+                    if (priority == null || p.compareTo(priority) < 0) {
+                        fileId = ready.getKey();
+                        generation = ready.getValue();
+                        priority = p;
+                    }
                 }
-                return;
+                if (fileId == null) {
+                    return false;
+                }
+                // move to the end of the queue
+                readyFiles.remove(fileId);
+                readyFiles.put(fileId, generation);
             }
 
-            // mark chunk as currently downloading
-            Chunk chunk = downloadInfo.getValue();
-            if (!chunk.activateDownload()) {
-                log.info(String.format("Download request of chunk %s canceled, already downloading", chunk.getChecksum()));
-                downloadFail(chunk, false, true);
-                return;
+            SharedFile sharedFile = SHARED_FILE_SERVICE.getFile(fileId);
+            if (sharedFile != null && requestNextChunk(sharedFile)) {
+                return true;
             }
+            // file not ready until the next event, unless an event marked it meanwhile
+            synchronized (readyFiles) {
+                readyFiles.remove(fileId, generation);
+            }
+        }
+    }
 
-            // send download request
-            ShareCommand<DownloadRequest> msg = new ShareCommand<>(ShareCommand.ShareCommandType.DOWNLOAD_REQUEST);
-            msg.addData(new DownloadRequest(chunk.getFileId(), LOCAL_NODE_ID, chunk.getChecksum()));
+    private boolean requestNextChunk(SharedFile sharedFile) {
+        if (copyNextLocalChunk(sharedFile)) {
+            return true;
+        }
 
-            Node node = NETWORK_SERVICE.getNode(downloadInfo.getKey());
-            if (node == null) {
-                log.warning(String.format("Could not find node for nodeId '%s'", downloadInfo.getKey()));
-                // re-schedule download of chunk
-                downloadFail(chunk);
-                return;
+        ChunkSelectionStrategy selection = sharedFile.isSequential() ? streamSelection : chunkSelection;
+        Pair<UUID, Chunk> downloadInfo = selection.nextChunk(sharedFile);
+        if (downloadInfo == null) {
+            return false;
+        }
+
+        Node node = NETWORK_SERVICE.getNode(downloadInfo.getKey());
+        if (node == null) {
+            log.warning(String.format("Could not find node for nodeId '%s'", downloadInfo.getKey()));
+            return false;
+        }
+
+        // mark chunk as currently downloading
+        Chunk chunk = downloadInfo.getValue();
+        if (!chunk.activateDownload()) {
+            log.info(String.format("Download request of chunk %s canceled, already downloading", chunk.getChecksum()));
+            return false;
+        }
+
+        ChunkDownloader chunkDownloader;
+        try {
+            chunkDownloader = createChunkDownloader(sharedFile, chunk);
+        } catch (IOException e) {
+            log.log(Level.WARNING, "Could not prepare download of chunk " + chunk.getChecksum(), e);
+            chunk.deactivateDownload();
+            return false;
+        }
+        chunkDownloaders.put(downloadKey(chunk), chunkDownloader);
+
+        // send download request
+        requestChunk(chunkDownloader, chunk, node);
+
+        // stripe the last chunks of a file across several nodes,
+        // before that other chunks of the file keep the nodes busy
+        if (isEndgame(sharedFile)) {
+            requestFromMoreNodes(chunkDownloader, sharedFile, chunk);
+        }
+
+        log.info(String.format("Requested Chunk '%s', from file '%s', remaining chunks to download: %d",
+            chunk.getChecksum(), sharedFile.getFilename(), sharedFile.getChunksToDownload().size()));
+        return true;
+    }
+
+    /**
+     * Copies a chunk to download from a local file holding the same bytes, instead of transferring it
+     * @return true if a copy was started, it occupies the download slot
+     */
+    private boolean copyNextLocalChunk(SharedFile sharedFile) {
+        for (Chunk chunk : sharedFile.getChunksToDownload()) {
+            Chunk source = SHARED_FILE_SERVICE.getChunkIndex().findLocal(chunk.getChecksum());
+            if (source == null || !chunk.activateDownload()) {
+                continue;
             }
-            NETWORK_SERVICE.sendCommand(msg, node, () -> downloadFail(chunk));
+            localCopier.execute(copyChunk(sharedFile, chunk, source));
+            return true;
+        }
+        return false;
+    }
 
-            log.info(String.format("Requested Chunk '%s', from file '%s'", chunk.getChecksum(), sharedFile.getFilename()));
+    private Runnable copyChunk(SharedFile sharedFile, Chunk chunk, Chunk source) {
+        return () -> {
+            ChunkFileWriter writer = null;
+            try {
+                SharedFile sourceFile = SHARED_FILE_SERVICE.getFile(source.getFileId());
+                writer = getFileWriter(sharedFile);
+                writer.copy(Paths.get(getReadablePath(sourceFile)), source.getOffset(), chunk.getOffset(), chunk.getSize());
+
+                // the source file may have changed since it was hashed
+                List<String> blockChecksums = new ArrayList<>(chunk.getBlockCount());
+                String checksum = CHECKSUM_SERVICE.calculateChecksum(writer.getPath().toString(), chunk.getOffset(), chunk.getSize(), blockChecksums);
+                if (chunk.getChecksum().equals(checksum)) {
+                    log.info(String.format("Copied chunk %s of file '%s' from local file '%s'", chunk.getChecksum(), sharedFile.getFilename(), sourceFile.getFilename()));
+                    chunk.setBlockChecksums(blockChecksums);
+                    writer.getJournal().chunkVerified(chunk);
+                    writer.chunkCompleted();
+                    downloadSuccess(sharedFile, chunk);
+                    return;
+                }
+                log.warning(String.format("Local copy of chunk %s from file '%s' does not match its checksum, download it", chunk.getChecksum(), sourceFile.getFilename()));
+            } catch (IOException e) {
+                log.log(Level.WARNING, String.format("Could not copy chunk %s from local file, download it", chunk.getChecksum()), e);
+            } catch (Exception e) {
+                log.log(Level.SEVERE, "Ooops!", e);
+            }
+            if (isReplaced(sharedFile, chunk)) {
+                // the download file was reopened for a new version, the source is fine
+                downloadDropped(chunk);
+                return;
+            }
+            // do not copy from this source again
+            SHARED_FILE_SERVICE.getChunkIndex().remove(source);
+            if (writer != null) {
+                // the copy may have overwritten received blocks
+                chunk.clearReceivedBlocks();
+                writer.getJournal().chunkCleared(chunk);
+            }
+            downloadFail(chunk);
         };
     }
 
+    private void indexLocalChunks(SharedFile sharedFile) {
+        sharedFile.getMetadata().getChunks().stream()
+            .filter(Chunk::isLocal)
+            .forEach(SHARED_FILE_SERVICE.getChunkIndex()::add);
+    }
+
     private Runnable download(DownloadRequestResult rr) {
         return () -> {
             // todo: surround all (in entire sharer project) runnable with try/catch and ...oops
 
             SharedFile sharedFile = SHARED_FILE_SERVICE.getFile(rr.getFileId());
-            Chunk chunk = sharedFile.getChunk(rr.getChunkChecksum());
-            chunk.requestAnswered();
+            // the chunk may have been replaced by a new version of the file meanwhile
+            Chunk chunk = sharedFile == null ? null : sharedFile.getChunk(rr.getChunkOffset(), rr.getChunkChecksum());
+            if (chunk != null) {
+                chunk.requestAnswered();
+            }
 
-            // check if download request was accepted
-            if (rr.getDownloadPort() < 0) {
-                log.warning(String.format("Download request of chunk %s was not accepted", rr.getChunkChecksum()));
-                downloadFail(chunk);
-                try {
-                    Thread.sleep(500);
-                } catch (InterruptedException e) {
-                    e.printStackTrace();
+            UUID nodeId = UUID.fromString(rr.getNodeId());
+            ChunkDownloader chunkDownloader = chunk == null ? null : chunkDownloaders.get(downloadKey(chunk));
+            if (chunkDownloader == null || chunkDownloader.getChunk() != chunk || ! chunkDownloader.hasSource(nodeId)) {
+                log.info(String.format("Ignore late answer of node '%s' for chunk %s", rr.getNodeId(), rr.getChunkChecksum()));
+                Node node = NETWORK_SERVICE.getNode(nodeId);
+                if (rr.getDownloadPort() >= 0 && node != null) {
+                    // let the uploader free its slot
+                    TRANSFER_SERVICE.send(node, new TransferFrame(TransferFrame.FrameType.RELEASE, LOCAL_NODE_ID,
+                        rr.getFileId(), rr.getChunkChecksum(), rr.getChunkOffset(), rr.getChunkOffset(), 0));
                 }
                 return;
             }
 
-            log.info(String.format("Active downloads: %d", maxConcurrentDownloads - downloadToken.availablePermits()));
+            chunkDownloader.sourceAnswered(nodeId);
 
-            Node node = NETWORK_SERVICE.getNode(UUID.fromString(rr.getNodeId()));
-            // check connection on all ips
-            Socket server = null;
-            for (String ip : node.getIps()) {
-                try {
-                    server = new Socket(InetAddress.getByName(ip), rr.getDownloadPort());
-                    server.setSoTimeout(SOCKET_TIMEOUT);
-                    break;
-                } catch (IOException e) {
-                    log.log(Level.WARNING, "Could not establish connection to server", e);
-                }
+            if (rr.isQueued()) {
+                log.info(String.format("Download request of chunk %s queued by node '%s', position %d, estimated wait %d ms",
+                    rr.getChunkChecksum(), rr.getNodeId(), rr.getQueuePosition(), rr.getEstimatedWait()));
+                // the node sends another result once the upload starts
+                chunkDownloader.sourceQueued(nodeId, rr.getEstimatedWait());
+                return;
             }
-            if (server == null) {
-                downloadFail(chunk);
+
+            // check if download request was accepted
+            if (rr.getDownloadPort() < 0) {
+                log.warning(String.format("Download request of chunk %s was not accepted by node '%s'", rr.getChunkChecksum(), rr.getNodeId()));
+                downloadConcurrency.congestion();
+                // back off before giving up on this source, without blocking other answers
+                rescheduler.schedule(() -> chunkDownloader.sourceDenied(nodeId), 500, TimeUnit.MILLISECONDS);
                 return;
             }
-            try {
-                String checksum = receiveData(server, rr.getFileId(), rr.getChunkChecksum());
 
-                if (checksum != null && checksum.equals(rr.getChunkChecksum())) {
-                    // finish download success
-                    downloadSuccess(sharedFile, chunk);
-                } else {
-                    // finish download failure
-                    // checksum does not match
+            log.info(String.format("Active downloads: %d", downloadConcurrency.getLimit() - downloadToken.availablePermits()));
+
+            // blocks get transferred on the persistent data connection to the node
+            chunkDownloader.sourceAccepted(nodeId, rr.getDownloadPort());
+        };
+    }
+
+    /**
+     * Depends on the file only, not on other downloads or the download limit
+     * @return true if every missing chunk of the file is downloading already, or only a few are missing
+     */
+    private boolean isEndgame(SharedFile sharedFile) {
+        return sharedFile.getChunksToDownload().isEmpty()
+            || sharedFile.getMetadata().getChunks().stream().filter(c -> !c.isLocal()).count() <= ENDGAME_CHUNKS;
+    }
+
+    private void requestFromMoreNodes(ChunkDownloader chunkDownloader, SharedFile sharedFile, Chunk chunk) {
+        int missingSources = MAX_SOURCES_PER_CHUNK - chunkDownloader.getSourceCount();
+        if (missingSources <= 0) {
+            return;
+        }
+        sharedFile.getReplicaNodesByChunk(chunk.getChecksum()).stream()
+            .filter(id -> ! chunkDownloader.hasSource(id))
+            .map(NETWORK_SERVICE::getNode)
+            .filter(Objects::nonNull)
+            .limit(missingSources)
+            .forEach(n -> requestChunk(chunkDownloader, chunk, n));
+    }
+
+    private void requestChunk(ChunkDownloader chunkDownloader, Chunk chunk, Node node) {
+        chunkDownloader.addSource(node);
+
+        ShareCommand<DownloadRequest> msg = new ShareCommand<>(ShareCommand.ShareCommandType.DOWNLOAD_REQUEST);
+        msg.addData(new DownloadRequest(chunk.getFileId(), LOCAL_NODE_ID, chunk.getOffset(), chunk.getChecksum()));
+        NETWORK_SERVICE.sendCommand(msg, node, () -> chunkDownloader.sourceDenied(node.getId()));
+    }
+
+    private ChunkDownloader createChunkDownloader(SharedFile sharedFile, Chunk chunk) throws IOException {
+        ChunkFileWriter writer = getFileWriter(sharedFile);
+        long requested = System.currentTimeMillis();
+        return new ChunkDownloader(LOCAL_NODE_ID, chunk, writer, checksumAlgorithm,
+            new TransferCallback() {
+                @Override
+                public void transferred(String checksum) {
+                    if (isReplaced(sharedFile, chunk)) {
+                        // the downloader of the new version's chunk at this offset stays registered
+                        downloadDropped(chunk);
+                        return;
+                    }
+                    chunkDownloaders.remove(downloadKey(chunk));
+                    if (checksum.equals(chunk.getChecksum())) {
+                        // finish download success
+                        writer.getJournal().chunkVerified(chunk);
+                        writer.chunkCompleted();
+                        downloadConcurrency.chunkDownloaded(chunk.getSize(), System.currentTimeMillis() - requested);
+                        downloadSuccess(sharedFile, chunk);
+                    } else {
+                        // finish download failure
+                        // checksum does not match, received blocks are useless
+                        chunk.clearReceivedBlocks();
+                        writer.getJournal().chunkCleared(chunk);
+                        downloadFail(chunk);
+                    }
+                }
+
+                @Override
+                public void fail() {
+                    // all sources failed, received blocks are kept
+                    // next download resumes with the first missing block
+                    downloadConcurrency.congestion();
                     downloadFail(chunk);
                 }
-            } catch (IOException e) {
-                log.log(Level.WARNING, "Could not receive data", e);
-                downloadFail(chunk);
-            }
-        };
+            });
     }
 
     // if this method is synchronized, deadlock
     private void downloadSuccess(SharedFile sharedFile, Chunk chunk) {
+        if (isReplaced(sharedFile, chunk)) {
+            // e.g. copied from a local file while a new version arrived
+            downloadDropped(chunk);
+            return;
+        }
         log.info(String.format("Download of chunk %s of file %s was successful", chunk.getChecksum(), chunk.getFileId()));
         chunk.setLocal(true);
         chunk.deactivateDownload();
+        SHARED_FILE_SERVICE.getChunkIndex().add(chunk);
         // check whether file was completely downloaded
         if (sharedFile.isLocal()) {
-            // finish file download
-            // rename file
-            try {
-                log.info(String.format("Rename file '%s' to finish download", sharedFile.getFilename()));
-                Files.move(Paths.get(sharedFile.getFilePath()+ DOWNLOAD_EXTENSION), Paths.get(sharedFile.getFilePath()), StandardCopyOption.REPLACE_EXISTING);
-            } catch (IOException e) {
-                log.log(Level.WARNING, String.format("Could not rename file '%s' to finish download", sharedFile.getFilename()), e);
-            }
-            sharedFile.deactivateDownload();
+            finishFileDownload(sharedFile);
         } else {
             log.info(String.format("File '%s' is not finished yet, chunks to download %s", sharedFile.getFilename(), sharedFile.getChunksToDownload().size()));
+            // e.g. the read-ahead window moved on
+            fileReady(sharedFile);
         }
         downloadToken.release();
+        scheduleDownloads();
 
         // notify observer, to show download progress
         sharedFile.notifyObservers(sharedFile.getMetadata(), ObserverCmd.UPDATE);
     }
 
-    private void downloadFail(Chunk chunk, boolean deactivate, boolean releaseToken) {
-        log.info("failed download");
-        if (chunk != null && deactivate) {
-            log.warning(String.format("Download of chunk %s of file %s failed", chunk.getChecksum(), chunk.getFileId()));
-            chunk.deactivateDownload();
+    private void finishFileDownload(SharedFile sharedFile) {
+        closeFileWriter(sharedFile);
+        // chunks mapped from the download file get mapped from the final file
+        SHARED_FILE_SERVICE.getChunkCache().invalidate(sharedFile.getFileId());
+
+        // rename file
+        try {
+            log.info(String.format("Rename file '%s' to finish download", sharedFile.getFilename()));
+            Files.move(Paths.get(sharedFile.getFilePath()+ DOWNLOAD_EXTENSION), Paths.get(sharedFile.getFilePath()), StandardCopyOption.REPLACE_EXISTING);
+        } catch (IOException e) {
+            log.log(Level.WARNING, String.format("Could not rename file '%s' to finish download", sharedFile.getFilename()), e);
         }
+        sharedFile.deactivateDownload();
 
-        log.info("reschedule download");
-        requester.execute(requestDownload());
+        // queued downloads may fit now
+        SHARED_FILE_SERVICE.releaseSpace(sharedFile.getFileId());
+        requester.execute(admitWaitingDownloads);
+    }
+
+    /**
+     * Marks chunks as local, which were verified before a restart, and restores received blocks
+     * @param sharedFile file to download
+     * @return true if the file download got finished by restoring
+     */
+    private boolean restoreDownloadState(SharedFile sharedFile) {
+        ChunkFileWriter writer;
+        synchronized (fileWriters) {
+            writer = fileWriters.get(sharedFile.getFileId());
+        }
+        if (writer == null) {
+            return false;
+        }
 
-        if (releaseToken) {
-            downloadToken.release();
+        int restored = writer.getJournal().restore(sharedFile.getMetadata().getChunks());
+        if (restored == 0) {
+            return false;
+        }
+        log.info(String.format("Restored %d downloaded chunks of file '%s'", restored, sharedFile.getFilename()));
+        indexLocalChunks(sharedFile);
+        sharedFile.notifyObservers(sharedFile.getMetadata(), ObserverCmd.UPDATE);
+
+        if (sharedFile.isLocal()) {
+            finishFileDownload(sharedFile);
+            return true;
         }
+        return false;
     }
 
     private void downloadFail(Chunk chunk) {
-        downloadFail(chunk, true, true);
+        SharedFile sharedFile = SHARED_FILE_SERVICE.getFile(chunk.getFileId());
+        if (sharedFile != null && isReplaced(sharedFile, chunk)) {
+            downloadDropped(chunk);
+            return;
+        }
+        log.warning(String.format("Download of chunk %s of file %s failed", chunk.getChecksum(), chunk.getFileId()));
+        ChunkDownloader chunkDownloader = chunkDownloaders.remove(downloadKey(chunk));
+        if (chunkDownloader != null) {
+            // e.g. rescheduled after request timeout
+            chunkDownloader.cancel();
+        }
+        chunk.deactivateDownload();
+
+        log.info("reschedule download");
+        if (sharedFile != null) {
+            fileReady(sharedFile);
+        }
+        downloadToken.release();
+        scheduleDownloads();
+    }
+
+    /**
+     * @return true if a new version of the file replaced the chunk while it was downloading
+     */
+    private boolean isReplaced(SharedFile sharedFile, Chunk chunk) {
+        return sharedFile.getMetadata().getChunks().stream().noneMatch(c -> c == chunk);
+    }
+
+    /**
+     * Frees the download slot of a chunk of a previous version of the file, nothing gets recorded
+     */
+    private void downloadDropped(Chunk chunk) {
+        log.info(String.format("Drop download of chunk %s of file %s, a new version replaced it", chunk.getChecksum(), chunk.getFileId()));
+        chunk.deactivateDownload();
+        downloadToken.release();
+        scheduleDownloads();
     }
 
     private void uploadSuccess() {
         uploadToken.release();
+        uploadSlotFreed(true);
     }
 
     private void uploadFail() {
         uploadToken.release();
+        uploadSlotFreed(false);
     }
 
-    private String receiveData(Socket server, String fileId, String chunkChecksum) throws IOException {
-        SharedFile sharedFile = SHARED_FILE_SERVICE.getFile(fileId);
-        Chunk chunk = sharedFile.getChunk(chunkChecksum);
-
-        // create directory structure
-        File path = Paths.get(sharedFile.getFilePath()).getParent().toFile();
-        if (! path.exists()) {
-            if (path.mkdirs()) {
-                log.fine("Created path: '" + path + "'");
-            } else {
-                log.severe("Could not create path: '" + path + "'");
-                return null;
+    /**
+     * @param released the downloader released the upload, denied, expired or revoked uploads do not count for the wait estimate
+     */
+    private void uploadSlotFreed(boolean released) {
+        synchronized (uploadQueue) {
+            if (released) {
+                long currentTime = System.currentTimeMillis();
+                if (lastRelease > 0) {
+                    long interval = currentTime - lastRelease;
+                    releaseInterval = releaseInterval == 0 ? interval : RELEASE_INTERVAL_WEIGHT * interval + (1 - RELEASE_INTERVAL_WEIGHT) * releaseInterval;
+                }
+                lastRelease = currentTime;
+            }
+            if (uploadQueue.isEmpty()) {
+                return;
             }
         }
+        uploader.execute(admitQueuedUploads);
+    }
 
-        RandomAccessFile outputFile = new RandomAccessFile(sharedFile.getFilePath() + DOWNLOAD_EXTENSION, "rw");
-
-        if (chunk.getOffset() > 0) {
-            outputFile.seek(chunk.getOffset());
+    /**
+     * @return position in the upload queue, 0 if the queue is full
+     */
+    private int enqueueUpload(DownloadRequest r) {
+        String key = uploadKey(r);
+        synchronized (uploadQueue) {
+            if (!uploadQueue.containsKey(key)) {
+                if (uploadQueue.size() >= maxConcurrentUploads * UPLOAD_QUEUE_FACTOR) {
+                    return 0;
+                }
+                uploadQueue.put(key, new Pair<>(r, System.currentTimeMillis()));
+            }
+            return new ArrayList<>(uploadQueue.keySet()).indexOf(key) + 1;
         }
+    }
 
-        // prepare message digest
-        MessageDigest md;
-        try {
-            md = MessageDigest.getInstance(checksumAlgorithm);
-        } catch (NoSuchAlgorithmException e) {
-            log.log(Level.WARNING, "Hash algorithm not found!", e);
-            return null;
+    private long estimateUploadWait(int queuePosition) {
+        synchronized (uploadQueue) {
+            // every freed slot moves the queue by one
+            return (long) (queuePosition * releaseInterval);
         }
+    }
 
-        BufferedInputStream is = new BufferedInputStream(server.getInputStream());
-        long remainingBytes = chunk.getSize();
-        byte[] buf = new byte[BUFFER_SIZE];
-        int len = is.read(buf);
-        while (len != -1) {
-            if ((remainingBytes - len) > 0) {
-                md.update(buf, 0, len);
-                outputFile.write(buf, 0, len);
-                remainingBytes -= len;
-                len = is.read(buf);
-            } else {
-                md.update(buf, 0, (int)remainingBytes);
-                outputFile.write(buf, 0, (int)remainingBytes);
-                break;
+    private Runnable admitQueuedUploads = () -> {
+        List<DownloadRequest> admitted = new ArrayList<>();
+        synchronized (uploadQueue) {
+            Iterator<Pair<DownloadRequest, Long>> it = uploadQueue.values().iterator();
+            while (it.hasNext()) {
+                DownloadRequest r = it.next().getKey();
+                // choked nodes wait for an unchoke, or for a slot nobody else takes
+                if (!uploadChoker.mayUpload(UUID.fromString(r.getNodeId()), getUploadCount(r.getNodeId()))) {
+                    continue;
+                }
+                if (!uploadToken.tryAcquire()) {
+                    break;
+                }
+                it.remove();
+                admitted.add(r);
             }
         }
-        outputFile.close();
-        is.close();
+        admitted.forEach(r -> {
+            log.info("Accept queued download request: " + r.getChunkChecksum() + " for file: " + r.getFileId());
+            admitUpload(r);
+        });
+    };
+
+    private void admitUpload(DownloadRequest r) {
+        // token is held until the downloader released the chunk on the data connection
+        Long previous = admittedUploads.put(uploadKey(r), System.currentTimeMillis());
+        if (previous != null) {
+            // same chunk requested again, release token of replaced admission
+            uploadFail();
+        }
 
-        return ChecksumService.digestToString(md.digest());
+        // send upload decision, downloader requests the chunk on the persistent data connection
+        ShareCommand<DownloadRequestResult> msg = new ShareCommand<>(ShareCommand.ShareCommandType.DOWNLOAD_REQUEST_RESULT);
+        msg.addData(new DownloadRequestResult(
+            r.getFileId(), LOCAL_NODE_ID, r.getChunkOffset(), r.getChunkChecksum(), dataPort));
+        NETWORK_SERVICE.sendCommand(msg, NETWORK_SERVICE.getNode(UUID.fromString(r.getNodeId())));
     }
 
     private Runnable  upload(DownloadRequest r) {
         return () -> {
             log.info(String.format("Active uploads: %d", maxConcurrentUploads - uploadToken.availablePermits()));
 
-            // take upload token, if not available, deny request
-            boolean acceptUpload = uploadToken.tryAcquire();
+            // take upload token if the node is not choked, if not available, queue request
+            UUID nodeId = UUID.fromString(r.getNodeId());
+            uploadChoker.requested(nodeId);
+            boolean acceptUpload = uploadChoker.mayUpload(nodeId, getUploadCount(r.getNodeId())) && acquireUploadToken(nodeId);
             boolean chunkIsLocal = SHARED_FILE_SERVICE.getFile(r.getFileId()).getMetadata().isChunkLocal(r.getChunkChecksum());
 
             ShareCommand<DownloadRequestResult> msg = new ShareCommand<>(ShareCommand.ShareCommandType.DOWNLOAD_REQUEST_RESULT);
+            int queuePosition;
             if (acceptUpload && chunkIsLocal) {
                 // accept
                 log.info("Accept download request: " + r.getChunkChecksum() + " for file: " + r.getFileId());
-
-                ServerSocket s;
-                try {
-                    s = openRandomPort();
-                } catch (IOException e) {
-                    log.log(Level.SEVERE, "Could not open socket for receiving data.", e);
-                    uploadFail();
-                    return;
-                }
-
-                // send upload decision
+                admitUpload(r);
+            } else if (!acceptUpload && chunkIsLocal && (queuePosition = enqueueUpload(r)) > 0) {
+                // no free slot, the upload starts once the request reaches the head of the queue
+                long estimatedWait = estimateUploadWait(queuePosition);
+                log.info(String.format("Queue download request: %s for file: %s, position %d, estimated wait %d ms",
+                    r.getChunkChecksum(), r.getFileId(), queuePosition, estimatedWait));
                 msg.addData(new DownloadRequestResult(
-                    r.getFileId(), LOCAL_NODE_ID, r.getChunkChecksum(), s.getLocalPort()));
-                NETWORK_SERVICE.sendCommand(msg, NETWORK_SERVICE.getNode(UUID.fromString(r.getNodeId())));
-
-                // handle upload (blocking)
-                Socket client = null;
-                try {
-                    client = s.accept();
-                    try {
-                        sendData(client, r.getFileId(), r.getChunkChecksum());
-                    } catch (IOException e) {
-                        log.log(Level.WARNING, "Could not send data to client", e);
-                    }
-                } catch (SocketTimeoutException e) {
-                    log.log(Level.SEVERE, "Connection timed out for chunk: " + r.getChunkChecksum(), e);
-                } catch (IOException e) {
-                    log.log(Level.SEVERE, "Could not accept new client.", e);
-                } finally {
-                    // close connection
-                    if (client != null) {
-                        try { client.close(); } catch (IOException e) { e.printStackTrace(); }
-                    }
-                    // close network connection
-                    try { s.close(); } catch (IOException e) { e.printStackTrace(); }
-                }
-                // release upload token
-                uploadSuccess();
+                    r.getFileId(), LOCAL_NODE_ID, r.getChunkOffset(), r.getChunkChecksum(), queuePosition, estimatedWait));
+                NETWORK_SERVICE.sendCommand(msg, NETWORK_SERVICE.getNode(nodeId));
             } else {
                 // deny
                 log.info("Deny scheduleDownloadRequest request: " + r.getFileId());
 
                 // send upload decision
                 msg.addData(new DownloadRequestResult(
-                    r.getFileId(), LOCAL_NODE_ID, r.getChunkChecksum(), DENY_DOWNLOAD));
+                    r.getFileId(), LOCAL_NODE_ID, r.getChunkOffset(), r.getChunkChecksum(), DENY_DOWNLOAD));
                 NETWORK_SERVICE.sendCommand(msg, NETWORK_SERVICE.getNode(UUID.fromString(r.getNodeId())));
                 if (acceptUpload) {
                     // release upload token
@@ -509,46 +1108,166 @@ public class ShareService implements AddFileListener {
         };
     }
 
-    private void sendData(Socket client, String fileId, String chunkChecksum) throws IOException {
-        SharedFile sharedFile = SHARED_FILE_SERVICE.getFile(fileId);
-        Chunk chunk = sharedFile.getChunk(chunkChecksum);
+    private boolean acquireUploadToken(UUID nodeId) {
+        if (uploadToken.tryAcquire()) {
+            return true;
+        }
+        // unchoked nodes take the slots choked nodes use meanwhile
+        return uploadChoker.isUnchoked(nodeId) && revokeChokedUpload() && uploadToken.tryAcquire();
+    }
 
-        String filePath = Files.exists(Paths.get(sharedFile.getFilePath())) ? sharedFile.getFilePath() : sharedFile.getFilePath() + DOWNLOAD_EXTENSION;
+    private int getUploadCount(String nodeId) {
+        return (int) admittedUploads.keySet().stream().filter(k -> k.startsWith(nodeId + "/")).count();
+    }
+
+    private boolean revokeChokedUpload() {
+        for (String key : admittedUploads.keySet()) {
+            if (!uploadChoker.isUnchoked(uploadKeyNodeId(key)) && admittedUploads.remove(key) != null) {
+                // further block requests of the chunk get denied
+                log.info("Choke upload: " + key);
+                uploadFail();
+                return true;
+            }
+        }
+        return false;
+    }
 
-        BufferedInputStream bis = new BufferedInputStream(new FileInputStream(filePath));
-        BufferedOutputStream bos = new BufferedOutputStream(client.getOutputStream());
+    @Override
+    public UploadSource openUpload(TransferFrame request) {
+        // admission covers all block requests of the chunk, until released
+        String key = uploadKey(request.getNodeId(), request.getFileId(), request.getChunkOffset(), request.getChunkChecksum());
+        if (admittedUploads.replace(key, System.currentTimeMillis()) == null) {
+            log.warning("Transfer request without admitted upload: " + request);
+            return null;
+        }
 
-        if (chunk.getOffset() > 0) {
-            bis.skip(chunk.getOffset());
+        SharedFile sharedFile = SHARED_FILE_SERVICE.getFile(request.getFileId());
+        Chunk chunk = sharedFile == null ? null : sharedFile.getChunk(request.getChunkOffset(), request.getChunkChecksum());
+        if (chunk == null || request.getOffset() < chunk.getOffset() || request.getOffset() + request.getLength() > chunk.getOffset() + chunk.getSize()) {
+            log.warning("Transfer request out of chunk bounds: " + request);
+            return null;
+        }
+        // the same content may be local at another offset of the file
+        Chunk local = chunk.isLocal() ? chunk : sharedFile.getLocalChunk(chunk.getChecksum());
+        if (local == null) {
+            log.warning("Requested chunk is not local: " + request);
+            return null;
         }
 
-        long count = 0;
-        long remainingBytes = chunk.getSize();
-        byte[] buf = new byte[BUFFER_SIZE];
-        int len = bis.read(buf);
-        while (len != -1) {
-            count += len;
-            if ((remainingBytes - len) > 0) {
-                bos.write(buf, 0, len);
-                remainingBytes -= len;
-                len = bis.read(buf);
-            } else {
-                bos.write(buf, 0, (int)remainingBytes);
-                break;
+        try {
+            UploadSource source = openData(sharedFile, local, local.getOffset() + request.getOffset() - chunk.getOffset(), request.getLength());
+
+            // prove whole blocks, so the downloader can verify them on arrival
+            List<String> blockChecksums = local.getBlockChecksums();
+            long blockStart = request.getOffset() - chunk.getOffset();
+            if (blockChecksums != null && blockChecksums.size() == local.getBlockCount() && blockStart % Chunk.BLOCK_SIZE == 0) {
+                int block = (int) (blockStart / Chunk.BLOCK_SIZE);
+                List<String> proof = HashTree.proof(blockChecksums, block, checksumAlgorithm);
+                if (proof != null && request.getLength() == local.getBlockSize(block)) {
+                    source.setProof(proof);
+                }
             }
+            return source;
+        } catch (IOException e) {
+            log.log(Level.WARNING, "Could not open chunk for upload: " + request, e);
+            return null;
         }
-        bos.flush();
-        log.info("Totally written bytes: " + count);
+    }
+
+    @Override
+    public void closeUpload(TransferFrame request, boolean success) {
+        log.fine("Totally written bytes: " + (success ? request.getLength() : 0));
+    }
 
-        bos.close();
-        bis.close();
+    @Override
+    public void releaseUpload(TransferFrame release) {
+        if (admittedUploads.remove(uploadKey(release.getNodeId(), release.getFileId(), release.getChunkOffset(), release.getChunkChecksum())) != null) {
+            // release upload token
+            uploadSuccess();
+        }
     }
 
-    private ServerSocket openRandomPort() throws IOException {
-        ServerSocket s = new ServerSocket(0); // choose random port
-        s.setSoTimeout(SOCKET_TIMEOUT);
+    /**
+     * @return path of the file, or of its download file if it is not finished yet
+     */
+    private String getReadablePath(SharedFile sharedFile) {
+        return Files.exists(Paths.get(sharedFile.getFilePath())) ? sharedFile.getFilePath() : sharedFile.getFilePath() + DOWNLOAD_EXTENSION;
+    }
 
-        return s;
+    private UploadSource openData(SharedFile sharedFile, Chunk chunk, long offset, long length) throws IOException {
+        String filePath = getReadablePath(sharedFile);
+
+        ChunkCache chunkCache = SHARED_FILE_SERVICE.getChunkCache();
+        if (chunkCache.isEnabled()) {
+            // serve hot chunks from memory mapped views, shared between all requests
+            ChunkCache.View view = chunkCache.get(sharedFile.getFileId(), sharedFile.getMetadata().getVersion(), chunk.getChecksum(),
+                Paths.get(filePath), chunk.getOffset(), chunk.getSize());
+            ByteBuffer buf = view.getBuffer();
+            buf.position((int) (offset - chunk.getOffset()));
+            buf.limit((int) (offset - chunk.getOffset() + length));
+            return new UploadSource(buf, view);
+        }
+
+        // stream the requested byte range from file straight to the socket (sendfile), no user space copy
+        return new UploadSource(FileChannel.open(Paths.get(filePath), StandardOpenOption.READ), offset, length);
+    }
+
+    private String uploadKey(DownloadRequest r) {
+        return uploadKey(r.getNodeId(), r.getFileId(), r.getChunkOffset(), r.getChunkChecksum());
+    }
+
+    private String uploadKey(String nodeId, String fileId, long chunkOffset, String chunkChecksum) {
+        return nodeId + "/" + fileId + "/" + chunkOffset + "/" + chunkChecksum;
+    }
+
+    private UUID uploadKeyNodeId(String uploadKey) {
+        return UUID.fromString(uploadKey.substring(0, uploadKey.indexOf('/')));
+    }
+
+    private String downloadKey(Chunk chunk) {
+        // the same content may appear at several offsets of a file
+        return chunk.getFileId() + "/" + chunk.getOffset();
+    }
+
+    private ChunkFileWriter getFileWriter(SharedFile sharedFile) throws IOException {
+        synchronized (fileWriters) {
+            ChunkFileWriter writer = fileWriters.get(sharedFile.getFileId());
+            if (writer != null) {
+                return writer;
+            }
+
+            // create directory structure
+            File path = Paths.get(sharedFile.getFilePath()).getParent().toFile();
+            if (! path.exists()) {
+                if (path.mkdirs()) {
+                    log.fine("Created path: '" + path + "'");
+                } else {
+                    throw new IOException("Could not create path: '" + path + "'");
+                }
+            }
+
+            writer = new ChunkFileWriter(Paths.get(sharedFile.getFilePath() + DOWNLOAD_EXTENSION), sharedFile.getFileId(),
+                sharedFile.getMetadata().getVersion(), sharedFile.getFileSize(), writeBehind);
+            fileWriters.put(sharedFile.getFileId(), writer);
+            return writer;
+        }
+    }
+
+    private void closeFileWriter(SharedFile sharedFile) {
+        ChunkFileWriter writer;
+        synchronized (fileWriters) {
+            writer = fileWriters.remove(sharedFile.getFileId());
+        }
+        if (writer == null) {
+            return;
+        }
+        try {
+            writer.close();
+            // download finished, progress does not need to be recorded anymore
+            writer.getJournal().delete();
+        } catch (IOException e) {
+            log.log(Level.WARNING, String.format("Could not close download file '%s'", writer.getPath()), e);
+        }
     }
 
     private boolean isFileDownloadedCorrectly(SharedFile sharedFile) {
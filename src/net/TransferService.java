@@ -0,0 +1,258 @@
+/*
+ * Copyright (c) 2017. Markus Monz
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package net;
+
+import net.data.DownloadStream;
+import net.data.Node;
+import net.data.TransferFrame;
+import net.decl.Service;
+import net.decl.TransferHandler;
+import net.decl.UploadProvider;
+import net.impl.DownloadConnection;
+import net.impl.TokenBucket;
+import net.impl.TransferLoop;
+import net.impl.UploadConnection;
+
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.channels.SocketChannel;
+import java.util.ArrayList;
+import java.util.Map;
+import java.util.UUID;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * Non-blocking transfer engine. A few transfer loops (I/O threads) drive all
+ * uploads on accepted data connections and all downloads on one persistent
+ * data connection per uploading node. Transferred bytes are limited by token
+ * buckets, a global one and one per connection, for uploads and downloads each.
+ */
+public class TransferService implements Service, TransferHandler {
+    private static final Logger log = Logger.getLogger(TransferService.class.getName());
+    private static final long SOCKET_TIMEOUT = TimeUnit.SECONDS.toMillis(10);
+    private static final long MIN_BURST = 64 * 1024; // 64 kByte
+
+    private ServerSocketChannel s;
+    private TransferLoop[] loops;
+    private Thread[] loopThreads;
+    private AtomicInteger nextLoop;
+    private ExecutorService callbacks;
+    private Map<UUID, DownloadConnection> connections;
+    private UploadProvider uploadProvider;
+    private TokenBucket.Limit uploadLimit;
+    private TokenBucket.Limit downloadLimit;
+    private TokenBucket.Limit peerUploadLimit;
+    private TokenBucket.Limit peerDownloadLimit;
+    private TokenBucket uploadBucket;
+    private TokenBucket downloadBucket;
+
+    public TransferService(int servicePort, int threadCount) throws IOException {
+        this.s = ServerSocketChannel.open();
+        this.s.bind(new InetSocketAddress(servicePort));
+        this.s.configureBlocking(false);
+
+        this.loops = new TransferLoop[threadCount];
+        this.loopThreads = new Thread[threadCount];
+        for (int i = 0; i < threadCount; i++) {
+            loops[i] = new TransferLoop();
+            loopThreads[i] = new Thread(loops[i], "transfer-loop-" + i);
+        }
+        this.nextLoop = new AtomicInteger();
+        // verification and result handling must not block the transfer loops
+        this.callbacks = Executors.newFixedThreadPool(Runtime.getRuntime().availableProcessors());
+        this.connections = new ConcurrentHashMap<>();
+
+        // unlimited until limits are set
+        this.uploadLimit = new TokenBucket.Limit(0, 1);
+        this.downloadLimit = new TokenBucket.Limit(0, 1);
+        this.peerUploadLimit = new TokenBucket.Limit(0, 1);
+        this.peerDownloadLimit = new TokenBucket.Limit(0, 1);
+        this.uploadBucket = new TokenBucket(uploadLimit);
+        this.downloadBucket = new TokenBucket(downloadLimit);
+    }
+
+    /**
+     * Changes the bandwidth limits, takes effect immediately for all connections
+     * @param uploadRate bytes per second of all uploads, 0 is unlimited
+     * @param downloadRate bytes per second of all downloads, 0 is unlimited
+     * @param peerUploadRate bytes per second of the uploads to one node, 0 is unlimited
+     * @param peerDownloadRate bytes per second of the downloads from one node, 0 is unlimited
+     * @param burstMillis burst allowance, as transfer time at the limited rate
+     */
+    public void setRateLimits(long uploadRate, long downloadRate, long peerUploadRate, long peerDownloadRate, long burstMillis) {
+        uploadLimit.set(uploadRate, getBurst(uploadRate, burstMillis));
+        downloadLimit.set(downloadRate, getBurst(downloadRate, burstMillis));
+        peerUploadLimit.set(peerUploadRate, getBurst(peerUploadRate, burstMillis));
+        peerDownloadLimit.set(peerDownloadRate, getBurst(peerDownloadRate, burstMillis));
+        log.info(String.format("Rate limits in bytes/s, upload: %d, download: %d, per node upload: %d, per node download: %d",
+            uploadRate, downloadRate, peerUploadRate, peerDownloadRate));
+    }
+
+    private long getBurst(long rate, long burstMillis) {
+        // at least one socket write, at high rates tokens refill between loop ticks
+        return Math.max(MIN_BURST, rate * burstMillis / 1000);
+    }
+
+    public void setUploadProvider(UploadProvider uploadProvider) {
+        this.uploadProvider = uploadProvider;
+    }
+
+    @Override
+    public void start() {
+        try {
+            for (Thread t : loopThreads) {
+                t.start();
+            }
+        } catch (IllegalThreadStateException e) {
+            // gets thrown when trying to start service twice
+            log.log(Level.WARNING, "Could not start transfer service", e);
+            return;
+        }
+
+        loops[0].execute(() -> {
+            try {
+                loops[0].register(s, SelectionKey.OP_ACCEPT, this);
+            } catch (IOException e) {
+                log.log(Level.SEVERE, "Could not accept data connections", e);
+            }
+        });
+    }
+
+    @Override
+    public void stop() {
+        for (Thread t : loopThreads) {
+            t.interrupt();
+        }
+        callbacks.shutdown();
+        try {
+            s.close();
+        } catch (IOException e) {
+            log.log(Level.WARNING, "Could not stop transfer service", e);
+        }
+    }
+
+    /**
+     * Requests the stream's byte range on the persistent data connection to the node
+     * @param node uploading node
+     * @param port data port of the uploading node
+     * @param stream request and destination of the received bytes
+     */
+    public void download(Node node, int port, DownloadStream stream) {
+        DownloadConnection connection = connections.compute(node.getId(), (id, c) -> {
+            if (c == null || c.getPort() != port) {
+                if (c != null) {
+                    DownloadConnection old = c;
+                    old.getLoop().execute(old::close);
+                }
+                return new DownloadConnection(id, new ArrayList<>(node.getIps()), port, nextLoop(), callbacks, SOCKET_TIMEOUT,
+                    new TokenBucket(peerDownloadLimit), downloadBucket);
+            }
+            return c;
+        });
+        connection.getLoop().execute(() -> connection.enqueue(stream));
+    }
+
+    /**
+     * Sends a frame without answer on the data connection to the node, if connected
+     * @param node uploading node
+     * @param frame frame to send, e.g. RELEASE
+     */
+    public void send(Node node, TransferFrame frame) {
+        DownloadConnection connection = connections.get(node.getId());
+        if (connection != null) {
+            connection.getLoop().execute(() -> connection.enqueue(frame));
+        }
+    }
+
+    /**
+     * Withdraws the stream's request on the data connection to the node, the stream must be canceled
+     * @param node uploading node
+     * @param stream canceled stream
+     */
+    public void cancel(Node node, DownloadStream stream) {
+        DownloadConnection connection = connections.get(node.getId());
+        if (connection != null) {
+            connection.getLoop().execute(() -> connection.cancel(stream));
+        }
+    }
+
+    /**
+     * @param node uploading node
+     * @return time bytes were received from the node last, 0 if there is no data connection
+     */
+    public long getLastActivity(Node node) {
+        DownloadConnection connection = connections.get(node.getId());
+        return connection == null ? 0 : connection.getLastActivity();
+    }
+
+    private TransferLoop nextLoop() {
+        return loops[Math.floorMod(nextLoop.getAndIncrement(), loops.length)];
+    }
+
+    @Override
+    public boolean resume() {
+        return true;
+    }
+
+    @Override
+    public void handle(SelectionKey key) throws IOException {
+        if (!key.isAcceptable()) {
+            return;
+        }
+        SocketChannel channel;
+        while ((channel = s.accept()) != null) {
+            channel.configureBlocking(false);
+            channel.socket().setKeepAlive(true);
+
+            TransferLoop loop = nextLoop();
+            UploadConnection connection = new UploadConnection(channel, uploadProvider, loop, SOCKET_TIMEOUT,
+                new TokenBucket(peerUploadLimit), uploadBucket);
+            SocketChannel accepted = channel;
+            loop.execute(() -> {
+                try {
+                    connection.setKey(loop.register(accepted, SelectionKey.OP_READ, connection));
+                } catch (IOException e) {
+                    log.log(Level.WARNING, "Could not register data connection", e);
+                    connection.close();
+                }
+            });
+        }
+    }
+
+    @Override
+    public void checkTimeout(long currentTime) {
+        // listening socket does not time out
+    }
+
+    @Override
+    public void close() {
+        log.severe("Data port was closed, no more uploads possible");
+        try {
+            s.close();
+        } catch (IOException e) {
+            log.log(Level.WARNING, "Could not close data port", e);
+        }
+    }
+}
@@ -22,10 +22,12 @@ public class DownloadRequest {
     @Expose private String fileId;
     @Expose private String nodeId;
     @Expose private String chunkChecksum;
+    @Expose private long chunkOffset; // same content may appear at several offsets of a file
 
-    public DownloadRequest(String fileId, String nodeId, String chunkChecksum) {
+    public DownloadRequest(String fileId, String nodeId, long chunkOffset, String chunkChecksum) {
         this.fileId = fileId;
         this.nodeId = nodeId;
+        this.chunkOffset = chunkOffset;
         this.chunkChecksum = chunkChecksum;
     }
 
@@ -40,4 +42,8 @@ public class DownloadRequest {
     public String getChunkChecksum() {
         return chunkChecksum;
     }
+
+    public long getChunkOffset() {
+        return chunkOffset;
+    }
 }
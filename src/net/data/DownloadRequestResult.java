@@ -23,15 +23,28 @@ public class DownloadRequestResult {
     @Expose private String fileId;
     @Expose private String nodeId;
     @Expose private String chunkChecksum;
+    @Expose private long chunkOffset;
     @Expose private int downloadPort;
+    @Expose private int queuePosition; // position in the upload queue of the node, 0 if not queued
+    @Expose private long estimatedWait; // milliseconds until the upload starts, 0 if unknown
 
-    public DownloadRequestResult(String fileId, String nodeId, String chunkChecksum, int downloadPort) {
+    public DownloadRequestResult(String fileId, String nodeId, long chunkOffset, String chunkChecksum, int downloadPort) {
         this.fileId = fileId;
         this.nodeId = nodeId;
+        this.chunkOffset = chunkOffset;
         this.chunkChecksum = chunkChecksum;
         this.downloadPort = downloadPort;
     }
 
+    /**
+     * Result of a request waiting in the upload queue, the upload gets accepted by another result later
+     */
+    public DownloadRequestResult(String fileId, String nodeId, long chunkOffset, String chunkChecksum, int queuePosition, long estimatedWait) {
+        this(fileId, nodeId, chunkOffset, chunkChecksum, -1);
+        this.queuePosition = queuePosition;
+        this.estimatedWait = estimatedWait;
+    }
+
     public String getFileId() {
         return fileId;
     }
@@ -44,7 +57,23 @@ public class DownloadRequestResult {
         return chunkChecksum;
     }
 
+    public long getChunkOffset() {
+        return chunkOffset;
+    }
+
     public int getDownloadPort() {
         return downloadPort;
     }
+
+    public int getQueuePosition() {
+        return queuePosition;
+    }
+
+    public long getEstimatedWait() {
+        return estimatedWait;
+    }
+
+    public boolean isQueued() {
+        return downloadPort < 0 && queuePosition > 0;
+    }
 }
@@ -0,0 +1,161 @@
+/*
+ * Copyright (c) 2018. Markus Monz
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package net.data;
+
+import local.ChecksumService;
+import local.impl.ChunkFileWriter;
+import net.decl.TransferCallback;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.security.MessageDigest;
+import java.util.Collections;
+import java.util.List;
+
+/**
+ * State of one requested byte range on a data connection: the request, the
+ * received bytes written to the download file and their running checksum.
+ */
+public class DownloadStream {
+    private TransferFrame request;
+    private ChunkFileWriter writer;
+    private MessageDigest md;
+    private TransferCallback callback;
+
+    private long position;
+    private long remaining;
+    private List<String> proof = Collections.emptyList();
+    private long answerTime;
+    private boolean written;
+    private boolean cancelled;
+    private boolean finished;
+
+    public DownloadStream(TransferFrame request, ChunkFileWriter writer, MessageDigest md, TransferCallback callback) {
+        this.request = request;
+        this.writer = writer;
+        this.md = md;
+        this.callback = callback;
+    }
+
+    public TransferFrame getRequest() {
+        return request;
+    }
+
+    /**
+     * @param answer DATA frame answering the request
+     */
+    public void begin(TransferFrame answer) {
+        this.position = answer.getOffset();
+        this.remaining = answer.getLength();
+        this.proof = answer.getProof();
+        this.answerTime = System.currentTimeMillis();
+    }
+
+    /**
+     * @return time the DATA header arrived, 0 if not answered yet
+     */
+    public long getAnswerTime() {
+        return answerTime;
+    }
+
+    /**
+     * @return hash tree proof sent by the uploader, empty if unknown
+     */
+    public List<String> getProof() {
+        return proof;
+    }
+
+    public long getRemaining() {
+        return remaining;
+    }
+
+    /**
+     * @return true if bytes of this stream were written to the download file
+     */
+    synchronized public boolean hasWritten() {
+        return written;
+    }
+
+    /**
+     * Received bytes get discarded from now on, e.g. another copy of the range arrived first.
+     * No bytes of this stream get buffered for writing after this call returned.
+     */
+    synchronized public void cancel() {
+        cancelled = true;
+    }
+
+    synchronized public boolean isCancelled() {
+        return cancelled;
+    }
+
+    /**
+     * Consumes the bytes of the buffer the download file's write buffers can take
+     * @param buf payload bytes of this stream, its position gets advanced by the consumed bytes
+     * @return count of consumed bytes, fewer than remaining if the write buffers are full
+     * @throws IOException if the bytes could not be written
+     */
+    public int consume(ByteBuffer buf) throws IOException {
+        int len = buf.remaining();
+        synchronized (this) {
+            if (!cancelled) {
+                ByteBuffer accepted = buf.duplicate();
+                len = writer.write(buf, position);
+                accepted.limit(accepted.position() + len);
+                md.update(accepted);
+                written |= len > 0;
+            } else {
+                buf.position(buf.limit());
+            }
+        }
+
+        position += len;
+        remaining -= len;
+        return len;
+    }
+
+    public boolean isAnswer(TransferFrame answer) {
+        return request.getFileId().equals(answer.getFileId())
+            && request.getChunkChecksum().equals(answer.getChunkChecksum())
+            && request.getOffset() == answer.getOffset();
+    }
+
+    /**
+     * Verifies the received bytes and reports the result, only once.
+     * The callback runs without the lock of the stream, the chunk downloader locks streams itself.
+     */
+    public void complete() {
+        String checksum;
+        synchronized (this) {
+            if (finished) {
+                return;
+            }
+            finished = true;
+            checksum = ChecksumService.digestToString(md.digest());
+        }
+        callback.transferred(checksum);
+    }
+
+    public void fail() {
+        synchronized (this) {
+            if (finished) {
+                return;
+            }
+            finished = true;
+        }
+        callback.fail();
+    }
+}
@@ -28,6 +28,8 @@ public class Node {
     private Set<String> ips;
     private long lastTimeSeen;
     private Socket socket;
+    private NodeScore score = new NodeScore();
+    private RttEstimator rtt = new RttEstimator();
 
     public Node(UUID id, String ip) {
         this.id = id;
@@ -62,6 +64,14 @@ public class Node {
         this.lastTimeSeen = lastTimeSeen;
     }
 
+    public NodeScore getScore() {
+        return score;
+    }
+
+    public RttEstimator getRtt() {
+        return rtt;
+    }
+
     synchronized public String toString() {
         return "IPs: " + String.join(", ", ips);
     }
@@ -0,0 +1,113 @@
+/*
+ * Copyright (c) 2018. Markus Monz
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package net.data;
+
+import data.Chunk;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Moving averages of the transfers from a node: throughput, time to first byte and failure rate.
+ * Samples age with a half life, the first sample after a long pause replaces most of the average,
+ * and the failures of a node get forgiven over time.
+ */
+public class NodeScore {
+    private static final double WEIGHT = 0.3; // weight of a fresh sample
+    private static final long HALF_LIFE = TimeUnit.SECONDS.toMillis(60);
+
+    private static class Average {
+        private double value;
+        private long lastUpdate;
+
+        private void add(double sample, long currentTime) {
+            // stale averages get replaced faster
+            double weight = Math.max(WEIGHT, 1 - decay(currentTime - lastUpdate));
+            value = weight * sample + (1 - weight) * value;
+            lastUpdate = currentTime;
+        }
+    }
+
+    private Average throughput = new Average(); // bytes per millisecond
+    private Average firstByte = new Average(); // milliseconds
+    private Average failureRate = new Average();
+    private long bytesTransferred;
+
+    private static double decay(long age) {
+        return Math.pow(0.5, age / (double) HALF_LIFE);
+    }
+
+    synchronized public void transferred(long bytes, long millis) {
+        long currentTime = System.currentTimeMillis();
+        throughput.add(bytes / (double) Math.max(1, millis), currentTime);
+        bytesTransferred += bytes;
+        failureRate.add(0, currentTime);
+    }
+
+    synchronized public void firstByte(long millis) {
+        firstByte.add(millis, System.currentTimeMillis());
+    }
+
+    synchronized public void failed() {
+        failureRate.add(1, System.currentTimeMillis());
+    }
+
+    /**
+     * @return expected bytes per millisecond of a block request, 0 if nothing was transferred yet
+     */
+    synchronized public double getScore() {
+        if (throughput.lastUpdate == 0) {
+            return 0;
+        }
+        double blockMillis = firstByte.value + Chunk.BLOCK_SIZE / Math.max(throughput.value, Double.MIN_VALUE);
+        return Chunk.BLOCK_SIZE / blockMillis * (1 - getFailureRate());
+    }
+
+    /**
+     * @return weight of the score, from 1 for fresh samples down to 0 for no samples
+     */
+    synchronized public double getConfidence() {
+        return throughput.lastUpdate == 0 ? 0 : decay(System.currentTimeMillis() - throughput.lastUpdate);
+    }
+
+    /**
+     * @return bytes per millisecond, 0 if nothing was transferred yet
+     */
+    synchronized public double getThroughput() {
+        return throughput.value;
+    }
+
+    /**
+     * @return bytes received from the node in total
+     */
+    synchronized public long getBytesTransferred() {
+        return bytesTransferred;
+    }
+
+    synchronized public double getFailureRate() {
+        // failures get forgiven over time
+        return failureRate.value * decay(System.currentTimeMillis() - failureRate.lastUpdate);
+    }
+
+    @Override
+    synchronized public String toString() {
+        if (throughput.lastUpdate == 0 && failureRate.lastUpdate == 0) {
+            return "no transfers";
+        }
+        return String.format("%.1f MB/s, first byte %.0f ms, %.0f%% failed, confidence %.2f",
+            throughput.value * 1000 / (1024 * 1024), firstByte.value, getFailureRate() * 100, getConfidence());
+    }
+}
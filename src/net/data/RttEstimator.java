@@ -0,0 +1,89 @@
+/*
+ * Copyright (c) 2018. Markus Monz
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package net.data;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Round trip time estimator of a node after Jacobson/Karels. The smoothed round trip time and its
+ * mean deviation give the request timeout SRTT + 4 * RTTVAR, which backs off exponentially on
+ * timeouts until the next sample arrives.
+ */
+public class RttEstimator {
+    private static final double ALPHA = 0.125; // gain of the smoothed round trip time
+    private static final double BETA = 0.25; // gain of the deviation
+    private static final long INITIAL_TIMEOUT = TimeUnit.SECONDS.toMillis(3);
+    private static final long MIN_TIMEOUT = TimeUnit.SECONDS.toMillis(1);
+    private static final long MAX_TIMEOUT = TimeUnit.SECONDS.toMillis(60);
+    private static final long MIN_STALL_TIMEOUT = TimeUnit.SECONDS.toMillis(2);
+    private static final int MAX_BACKOFF = 6;
+    private static final long STALL_BYTES = 64 * 1024; // gap between reads of a slow but healthy node
+
+    private double srtt = -1;
+    private double rttvar;
+    private int backoff;
+
+    /**
+     * @param rtt time from a request to its answer, in milliseconds
+     */
+    synchronized public void sample(long rtt) {
+        if (srtt < 0) {
+            srtt = rtt;
+            rttvar = rtt / 2.0;
+        } else {
+            rttvar = (1 - BETA) * rttvar + BETA * Math.abs(srtt - rtt);
+            srtt = (1 - ALPHA) * srtt + ALPHA * rtt;
+        }
+        backoff = 0;
+    }
+
+    /**
+     * A request was not answered in time
+     */
+    synchronized public void timedOut() {
+        backoff = Math.min(backoff + 1, MAX_BACKOFF);
+    }
+
+    /**
+     * @return time to wait for the answer of a request, in milliseconds
+     */
+    synchronized public long getTimeout() {
+        double timeout = srtt < 0 ? INITIAL_TIMEOUT : srtt + 4 * rttvar;
+        timeout = Math.max(MIN_TIMEOUT, timeout) * (1 << backoff);
+        return (long) Math.min(MAX_TIMEOUT, timeout);
+    }
+
+    /**
+     * @param throughput bytes per millisecond received from the node, 0 if unknown
+     * @return time without any received byte after which a transfer counts as stalled, in milliseconds
+     */
+    synchronized public long getStallTimeout(double throughput) {
+        double timeout = 2 * getTimeout();
+        if (throughput > 0) {
+            timeout += STALL_BYTES / throughput;
+        }
+        return (long) Math.min(MAX_TIMEOUT, Math.max(MIN_STALL_TIMEOUT, timeout));
+    }
+
+    @Override
+    synchronized public String toString() {
+        if (srtt < 0) {
+            return "rtt unknown";
+        }
+        return String.format("rtt %.0f ms, timeout %d ms", srtt, getTimeout());
+    }
+}
@@ -32,6 +32,7 @@ public class ShareCommand<T> {
         PUSH_SHARE_LIST,
         DOWNLOAD_REQUEST,
         DOWNLOAD_REQUEST_RESULT,
+        CANCEL, // withdraws a download request, data is the request
     }
 
     @Expose private ShareCommandType cmd;
@@ -0,0 +1,219 @@
+/*
+ * Copyright (c) 2018. Markus Monz
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package net.data;
+
+import net.NetworkService;
+
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+
+/**
+ * Header of a message on a persistent data connection between two nodes.
+ * A REQUEST asks for a byte range of a chunk, the answer is a DATA header
+ * directly followed by the requested bytes, or a DENY header without payload.
+ * A RELEASE tells the uploader that no more ranges of the chunk get requested.
+ * A CANCEL withdraws a request, the uploader answers it with DENY if not answered yet.
+ * A DATA header of a block carries the hash tree proof of the block, if known.
+ *
+ * The same content may appear at several offsets of a file, so a chunk is
+ * identified by its offset and its checksum.
+ *
+ * Wire format: int header length, byte type, nodeId, fileId, chunkChecksum
+ * (each as unsigned short length plus UTF-8 bytes), long chunk offset,
+ * long offset, long length, unsigned byte proof length, proof checksums (as strings).
+ */
+public class TransferFrame {
+    public enum FrameType {
+        REQUEST,
+        DATA,
+        DENY,
+        RELEASE,
+        CANCEL,
+    }
+
+    public static final int MAX_HEADER_LENGTH = 2048;
+
+    private FrameType type;
+    private String nodeId;
+    private String fileId;
+    private String chunkChecksum;
+    private long chunkOffset;
+    private long offset;
+    private long length;
+    private List<String> proof;
+
+    public TransferFrame(FrameType type, String nodeId, String fileId, String chunkChecksum, long chunkOffset, long offset, long length) {
+        this(type, nodeId, fileId, chunkChecksum, chunkOffset, offset, length, Collections.emptyList());
+    }
+
+    public TransferFrame(FrameType type, String nodeId, String fileId, String chunkChecksum, long chunkOffset, long offset, long length,
+                         List<String> proof) {
+        this.type = type;
+        this.nodeId = nodeId;
+        this.fileId = fileId;
+        this.chunkChecksum = chunkChecksum;
+        this.chunkOffset = chunkOffset;
+        this.offset = offset;
+        this.length = length;
+        this.proof = proof;
+    }
+
+    public FrameType getType() {
+        return type;
+    }
+
+    public String getNodeId() {
+        return nodeId;
+    }
+
+    public String getFileId() {
+        return fileId;
+    }
+
+    public String getChunkChecksum() {
+        return chunkChecksum;
+    }
+
+    /**
+     * @return absolute file offset of the chunk
+     */
+    public long getChunkOffset() {
+        return chunkOffset;
+    }
+
+    /**
+     * @return absolute file offset of the first byte
+     */
+    public long getOffset() {
+        return offset;
+    }
+
+    /**
+     * @return count of bytes requested, or following the header
+     */
+    public long getLength() {
+        return length;
+    }
+
+    /**
+     * @return sibling checksums of the block's hash tree path, empty if unknown
+     */
+    public List<String> getProof() {
+        return proof;
+    }
+
+    public ByteBuffer encode() {
+        byte[] node = nodeId.getBytes(NetworkService.PROTOCOL_CHARSET);
+        byte[] file = fileId.getBytes(NetworkService.PROTOCOL_CHARSET);
+        byte[] checksum = chunkChecksum.getBytes(NetworkService.PROTOCOL_CHARSET);
+        List<byte[]> proofBytes = new ArrayList<>(proof.size());
+        proof.forEach(p -> proofBytes.add(p.getBytes(NetworkService.PROTOCOL_CHARSET)));
+        int headerLength = 1 + 2 + node.length + 2 + file.length + 2 + checksum.length + 8 + 8 + 8
+            + 1 + proofBytes.stream().mapToInt(p -> 2 + p.length).sum();
+
+        ByteBuffer buf = ByteBuffer.allocate(4 + headerLength);
+        buf.putInt(headerLength);
+        buf.put((byte) type.ordinal());
+        putString(buf, node);
+        putString(buf, file);
+        putString(buf, checksum);
+        buf.putLong(chunkOffset);
+        buf.putLong(offset);
+        buf.putLong(length);
+        buf.put((byte) proofBytes.size());
+        proofBytes.forEach(p -> putString(buf, p));
+        buf.flip();
+
+        return buf;
+    }
+
+    /**
+     * Decodes a frame header, without the leading header length
+     * @param header buffer containing exactly one header
+     * @return decoded frame
+     */
+    public static TransferFrame decode(ByteBuffer header) {
+        int typeIndex = header.get();
+        if (typeIndex < 0 || typeIndex >= FrameType.values().length) {
+            throw new IllegalArgumentException("Unknown transfer frame type: " + typeIndex);
+        }
+        FrameType type = FrameType.values()[typeIndex];
+        String nodeId = getString(header);
+        String fileId = getString(header);
+        String chunkChecksum = getString(header);
+        long chunkOffset = header.getLong();
+        long offset = header.getLong();
+        long length = header.getLong();
+        int proofLength = header.get() & 0xFF;
+        List<String> proof = new ArrayList<>(proofLength);
+        for (int i = 0; i < proofLength; i++) {
+            proof.add(getString(header));
+        }
+
+        return new TransferFrame(type, nodeId, fileId, chunkChecksum, chunkOffset, offset, length, proof);
+    }
+
+    /**
+     * Reads the next frame header from the buffer, if it was received completely
+     * @param buf buffer in read mode, position gets moved behind the header
+     * @return decoded frame, or null if more bytes are required
+     */
+    public static TransferFrame read(ByteBuffer buf) {
+        if (buf.remaining() < 4) {
+            return null;
+        }
+        int headerLength = buf.getInt(buf.position());
+        if (headerLength <= 0 || headerLength > MAX_HEADER_LENGTH) {
+            throw new IllegalArgumentException("Invalid transfer frame header length: " + headerLength);
+        }
+        if (buf.remaining() < 4 + headerLength) {
+            return null;
+        }
+
+        buf.position(buf.position() + 4);
+        ByteBuffer header = buf.slice();
+        header.limit(headerLength);
+        buf.position(buf.position() + headerLength);
+
+        return decode(header);
+    }
+
+    private static void putString(ByteBuffer buf, byte[] s) {
+        buf.putShort((short) s.length);
+        buf.put(s);
+    }
+
+    private static String getString(ByteBuffer buf) {
+        byte[] s = new byte[buf.getShort() & 0xFFFF];
+        buf.get(s);
+        return new String(s, NetworkService.PROTOCOL_CHARSET);
+    }
+
+    @Override
+    public String toString() {
+        return "TransferFrame{" +
+            "type=" + type +
+            ", fileId=" + fileId +
+            ", chunkChecksum=" + chunkChecksum +
+            ", chunkOffset=" + chunkOffset +
+            ", offset=" + offset +
+            ", length=" + length +
+            '}';
+    }
+}
@@ -0,0 +1,116 @@
+/*
+ * Copyright (c) 2018. Markus Monz
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package net.data;
+
+import java.io.Closeable;
+import java.io.EOFException;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.channels.WritableByteChannel;
+import java.util.Collections;
+import java.util.List;
+
+/**
+ * Bytes of one requested range, either from a cached buffer or from a file channel.
+ * Works with non-blocking channels, every call writes as much as the channel accepts.
+ */
+public class UploadSource implements Closeable {
+    private ByteBuffer buffer;
+    private Closeable view; // keeps the buffer's mapping alive
+    private FileChannel channel;
+    private long position;
+    private long remaining;
+    private List<String> proof = Collections.emptyList();
+
+    public UploadSource(ByteBuffer buffer) {
+        this(buffer, null);
+    }
+
+    /**
+     * @param buffer bytes to send
+     * @param view owner of the buffer, gets closed with the upload
+     */
+    public UploadSource(ByteBuffer buffer, Closeable view) {
+        this.buffer = buffer;
+        this.view = view;
+        this.remaining = buffer.remaining();
+    }
+
+    public UploadSource(FileChannel channel, long position, long length) {
+        this.channel = channel;
+        this.position = position;
+        this.remaining = length;
+    }
+
+    /**
+     * @param out channel to write to
+     * @param max max bytes to write, e.g. granted by a rate limit
+     * @return bytes written
+     * @throws IOException
+     */
+    public long transferTo(WritableByteChannel out, long max) throws IOException {
+        long written;
+        if (buffer != null) {
+            int limit = buffer.limit();
+            if (max < buffer.remaining()) {
+                buffer.limit(buffer.position() + (int) max);
+            }
+            written = out.write(buffer);
+            buffer.limit(limit);
+        } else {
+            // zero-copy (sendfile)
+            written = channel.transferTo(position, Math.min(remaining, max), out);
+            if (written == 0 && position >= channel.size()) {
+                throw new EOFException("File ends before the requested range was sent completely");
+            }
+            position += written;
+        }
+        remaining -= written;
+
+        return written;
+    }
+
+    /**
+     * @return hash tree proof of the requested block, sent with the DATA header
+     */
+    public List<String> getProof() {
+        return proof;
+    }
+
+    public void setProof(List<String> proof) {
+        this.proof = proof;
+    }
+
+    public long getRemaining() {
+        return remaining;
+    }
+
+    public boolean isDone() {
+        return remaining == 0;
+    }
+
+    @Override
+    public void close() throws IOException {
+        if (channel != null) {
+            channel.close();
+        }
+        if (view != null) {
+            view.close();
+        }
+    }
+}
@@ -0,0 +1,36 @@
+/*
+ * Copyright (c) 2018. Markus Monz
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package net.decl;
+
+import java.io.IOException;
+import java.nio.channels.SelectionKey;
+
+/**
+ * Handles the events of one channel registered on a transfer loop.
+ * All methods get called by the transfer loop's thread only.
+ */
+public interface TransferHandler {
+    void handle(SelectionKey key) throws IOException;
+    void checkTimeout(long currentTime);
+
+    /**
+     * Gets called repeatedly after the handler throttled itself on its loop
+     * @return true if the handler is not throttled anymore
+     */
+    boolean resume();
+    void close();
+}
@@ -0,0 +1,37 @@
+/*
+ * Copyright (c) 2018. Markus Monz
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package net.decl;
+
+import net.data.TransferFrame;
+import net.data.UploadSource;
+
+public interface UploadProvider {
+    /**
+     * Opens the requested byte range for upload
+     * @param request the received request frame
+     * @return source of the requested bytes, or null if the request gets denied
+     */
+    UploadSource openUpload(TransferFrame request);
+
+    void closeUpload(TransferFrame request, boolean success);
+
+    /**
+     * Downloader finished requesting ranges of the chunk
+     * @param release the received release frame
+     */
+    void releaseUpload(TransferFrame release);
+}
@@ -0,0 +1,554 @@
+/*
+ * Copyright (c) 2018. Markus Monz
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package net.impl;
+
+import data.Chunk;
+import local.ChecksumService;
+import local.ServiceLocator;
+import local.impl.ChunkFileWriter;
+import local.impl.HashTree;
+import net.NetworkService;
+import net.TransferService;
+import net.data.DownloadRequest;
+import net.data.DownloadStream;
+import net.data.Node;
+import net.data.ShareCommand;
+import net.data.TransferFrame;
+import net.decl.TransferCallback;
+
+import java.io.IOException;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.BitSet;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.UUID;
+import java.util.concurrent.TimeUnit;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * Downloads the missing blocks of one chunk from one or more nodes. Every source
+ * keeps several block requests outstanding and pulls the next unassigned block
+ * whenever one of its blocks arrived, so faster sources get more blocks. The
+ * pipeline depth of a source is scaled by its measured throughput, and blocks of
+ * a stalled source get assigned to the other sources. A source stalls if nothing
+ * arrives from its node for longer than the node's stall timeout, and a request
+ * without answer times out after the node's round trip based timeout. Received blocks stay marked
+ * in the chunk, so a failed download resumes with the first missing block.
+ *
+ * Blocks sent with a hash tree proof get verified on arrival against the tree root
+ * of the chunk. A corrupt block is requested again from another source, and the
+ * chunk needs no re-hashing if all of its blocks were verified.
+ *
+ * Endgame: once every missing block is assigned, sources with spare pipeline depth
+ * request blocks outstanding at other sources once more. The first copy of a block
+ * wins, the duplicate requests get canceled.
+ */
+public class ChunkDownloader {
+    private static final Logger log = Logger.getLogger(ChunkDownloader.class.getName());
+    private static final ChecksumService CHECKSUM_SERVICE = (ChecksumService) ServiceLocator.getInstance().getService(ServiceLocator.CHECKSUM_SERVICE);
+    private static final TransferService TRANSFER_SERVICE = (TransferService) ServiceLocator.getInstance().getService(ServiceLocator.TRANSFER_SERVICE);
+    private static final NetworkService NETWORK_SERVICE = (NetworkService) ServiceLocator.getInstance().getService(ServiceLocator.NETWORK_SERVICE);
+    private static final int PIPELINE_DEPTH = 4; // max outstanding block requests per source
+    private static final double THROUGHPUT_WEIGHT = 0.3; // weight of the newest sample in the moving average
+    private static final int MAX_BLOCK_REQUESTS = 2; // outstanding requests per block in endgame
+    private static final long QUEUE_TIMEOUT = TimeUnit.SECONDS.toMillis(30); // max wait in the upload queue of a node
+
+    private class Source {
+        private Node node;
+        private int port = -1; // known once the download request was accepted
+        private long requestedAt;
+        private boolean answered;
+        private long queuedUntil; // gives up waiting in the upload queue of the node then
+        private boolean done; // denied, failed or stalled, gets no more blocks
+        private Set<Integer> assignedBlocks = new HashSet<>();
+        private long lastProgress;
+        private long lastRequest;
+        private long acceptedAt;
+        private boolean firstByteMeasured;
+        private double throughput; // bytes per millisecond
+
+        private Source(Node node) {
+            this.node = node;
+        }
+
+        private boolean isActive() {
+            return port >= 0 && !done;
+        }
+    }
+
+    private class BlockCallback implements TransferCallback {
+        private Source source;
+        private int block;
+        private DownloadStream stream;
+
+        private BlockCallback(Source source, int block) {
+            this.source = source;
+            this.block = block;
+        }
+
+        @Override
+        public void transferred(String checksum) {
+            blockReceived(this, checksum);
+        }
+
+        @Override
+        public void fail() {
+            blockFailed(this);
+        }
+    }
+
+    private String localNodeId;
+    private Chunk chunk;
+    private ChunkFileWriter writer;
+    private String checksumAlgorithm;
+    private TransferCallback callback;
+
+    private Map<UUID, Source> sources;
+    private List<BlockCallback> requests; // outstanding block requests of all sources
+    private String[] blockChecksums; // verified against the tree root
+    private BitSet verifiedBlocks;
+    private boolean unverifiedWrites; // bytes of unverified blocks may have been written
+    private boolean finished;
+
+    public ChunkDownloader(String localNodeId, Chunk chunk, ChunkFileWriter writer, String checksumAlgorithm, TransferCallback callback) {
+        this.localNodeId = localNodeId;
+        this.chunk = chunk;
+        this.writer = writer;
+        this.checksumAlgorithm = checksumAlgorithm;
+        this.callback = callback;
+        this.sources = new LinkedHashMap<>();
+        this.requests = new ArrayList<>();
+        this.blockChecksums = new String[chunk.getBlockCount()];
+        this.verifiedBlocks = new BitSet(chunk.getBlockCount());
+    }
+
+    /**
+     * Register a node the chunk was requested from, blocks get assigned once it accepted
+     */
+    synchronized public void addSource(Node node) {
+        if (finished) {
+            return;
+        }
+        Source source = new Source(node);
+        source.requestedAt = System.currentTimeMillis();
+        sources.putIfAbsent(node.getId(), source);
+    }
+
+    /**
+     * The node answered the download request, accepted or denied
+     */
+    synchronized public void sourceAnswered(UUID nodeId) {
+        Source source = sources.get(nodeId);
+        if (source == null || source.answered) {
+            return;
+        }
+        source.answered = true;
+        source.node.getRtt().sample(System.currentTimeMillis() - source.requestedAt);
+    }
+
+    public Chunk getChunk() {
+        return chunk;
+    }
+
+    synchronized public boolean hasSource(UUID nodeId) {
+        return sources.containsKey(nodeId);
+    }
+
+    /**
+     * @return count of sources which did not fail yet
+     */
+    synchronized public int getSourceCount() {
+        return (int) sources.values().stream().filter(s -> !s.done).count();
+    }
+
+    synchronized public void sourceAccepted(UUID nodeId, int port) {
+        Source source = sources.get(nodeId);
+        if (source != null && source.done && !finished) {
+            // accepted after the request timed out, the uploader can free its slot
+            sourceAnswered(nodeId);
+            release(source.node);
+            return;
+        }
+        if (finished || source == null || source.done) {
+            return;
+        }
+        log.info(String.format("Download chunk %s from node '%s', %d of %d blocks already received",
+            chunk.getChecksum(), nodeId, chunk.getReceivedBlockCount(), chunk.getBlockCount()));
+        sourceAnswered(nodeId);
+        source.port = port;
+        source.lastProgress = System.currentTimeMillis();
+        source.acceptedAt = source.lastProgress;
+        requestBlocks();
+    }
+
+    /**
+     * The node queued the download request, it accepts later
+     * @param nodeId uploading node
+     * @param estimatedWait milliseconds until the upload starts, 0 if unknown
+     */
+    synchronized public void sourceQueued(UUID nodeId, long estimatedWait) {
+        Source source = sources.get(nodeId);
+        if (finished || source == null || source.done) {
+            return;
+        }
+        long wait = estimatedWait > 0 ? 2 * estimatedWait : QUEUE_TIMEOUT;
+        source.queuedUntil = System.currentTimeMillis() + Math.min(QUEUE_TIMEOUT, wait) + source.node.getRtt().getTimeout();
+    }
+
+    synchronized public void sourceDenied(UUID nodeId) {
+        Source source = sources.get(nodeId);
+        if (finished || source == null) {
+            return;
+        }
+        dropSource(source);
+        requestBlocks();
+    }
+
+    /**
+     * Reassigns the blocks of stalled sources, gets called periodically
+     */
+    synchronized public void rebalance() {
+        if (finished) {
+            return;
+        }
+        requestBlocks();
+    }
+
+    /**
+     * Stops the download without reporting a result, e.g. after the chunk got rescheduled
+     * @return false if the download finished before, its result gets reported
+     */
+    synchronized public boolean cancel() {
+        if (finished) {
+            return false;
+        }
+        finished = true;
+        cancelRequests(null);
+        releaseSources();
+        return true;
+    }
+
+    private void requestBlocks() {
+        long currentTime = System.currentTimeMillis();
+        double maxThroughput = 0;
+        for (Source source : sources.values()) {
+            if (!source.done && !source.answered && (currentTime - source.requestedAt) > source.node.getRtt().getTimeout()) {
+                log.warning(String.format("Download request of chunk %s to node '%s' timed out", chunk.getChecksum(), source.node.getId()));
+                source.node.getRtt().timedOut();
+                dropSource(source);
+            }
+            if (!source.done && source.port < 0 && source.queuedUntil > 0 && currentTime > source.queuedUntil) {
+                log.warning(String.format("Download request of chunk %s waited too long in the upload queue of node '%s'", chunk.getChecksum(), source.node.getId()));
+                dropSource(source);
+            }
+            if (source.isActive() && !source.assignedBlocks.isEmpty() && isStalled(source, currentTime)) {
+                log.warning(String.format("Source '%s' of chunk %s stalled, reassign its blocks", source.node.getId(), chunk.getChecksum()));
+                dropSource(source);
+            }
+            if (source.isActive()) {
+                maxThroughput = Math.max(maxThroughput, source.throughput);
+            }
+        }
+
+        for (Source source : sources.values()) {
+            if (!source.isActive()) {
+                continue;
+            }
+            // sources get a pipeline depth in proportion to their throughput
+            int depth = PIPELINE_DEPTH;
+            if (source.throughput > 0 && maxThroughput > 0) {
+                depth = (int) Math.max(1, Math.round(PIPELINE_DEPTH * source.throughput / maxThroughput));
+            }
+            while (source.assignedBlocks.size() < depth) {
+                int block = nextUnassignedBlock();
+                if (block < 0) {
+                    block = nextDuplicateBlock(source);
+                }
+                if (block < 0) {
+                    break;
+                }
+                if (!requestBlock(source, block)) {
+                    dropSource(source);
+                    break;
+                }
+            }
+        }
+
+        checkFinished();
+    }
+
+    private boolean isStalled(Source source, long currentTime) {
+        // bytes of other chunks from the node count as well, they share the data connection
+        long lastActivity = Math.max(Math.max(source.lastProgress, source.lastRequest), TRANSFER_SERVICE.getLastActivity(source.node));
+        long stallTimeout = source.node.getRtt().getStallTimeout(source.node.getScore().getThroughput());
+        return (currentTime - lastActivity) > stallTimeout;
+    }
+
+    private int nextUnassignedBlock() {
+        int block = chunk.nextMissingBlock(0);
+        while (block >= 0 && isAssigned(block)) {
+            block = chunk.nextMissingBlock(block + 1);
+        }
+        return block;
+    }
+
+    private boolean isAssigned(int block) {
+        return sources.values().stream().anyMatch(s -> s.assignedBlocks.contains(block));
+    }
+
+    /**
+     * @return missing block outstanding at other sources only, or -1 if there is none
+     */
+    private int nextDuplicateBlock(Source source) {
+        int block = chunk.nextMissingBlock(0);
+        while (block >= 0) {
+            if (!source.assignedBlocks.contains(block) && getRequestCount(block) < MAX_BLOCK_REQUESTS) {
+                return block;
+            }
+            block = chunk.nextMissingBlock(block + 1);
+        }
+        return -1;
+    }
+
+    private int getRequestCount(int block) {
+        return (int) requests.stream().filter(r -> r.block == block && !r.stream.isCancelled()).count();
+    }
+
+    private boolean requestBlock(Source source, int block) {
+        MessageDigest md;
+        try {
+            md = MessageDigest.getInstance(checksumAlgorithm);
+        } catch (NoSuchAlgorithmException e) {
+            log.log(Level.WARNING, "Hash algorithm not found!", e);
+            return false;
+        }
+
+        source.assignedBlocks.add(block);
+        source.lastRequest = System.currentTimeMillis();
+
+        TransferFrame request = new TransferFrame(TransferFrame.FrameType.REQUEST, localNodeId,
+            chunk.getFileId(), chunk.getChecksum(), chunk.getOffset(), chunk.getBlockOffset(block), chunk.getBlockSize(block));
+        BlockCallback blockCallback = new BlockCallback(source, block);
+        blockCallback.stream = new DownloadStream(request, writer, md, blockCallback);
+        requests.add(blockCallback);
+        TRANSFER_SERVICE.download(source.node, source.port, blockCallback.stream);
+
+        return true;
+    }
+
+    synchronized private void blockReceived(BlockCallback request, String checksum) {
+        requests.remove(request);
+        if (finished || request.stream.isCancelled()) {
+            return;
+        }
+        Source source = request.source;
+        int block = request.block;
+        List<String> proof = request.stream.getProof();
+
+        if (chunk.hasTreeRoot() && ! proof.isEmpty()) {
+            if (! HashTree.verify(checksum, block, chunk.getBlockCount(), proof, chunk.getTreeRoot(), checksumAlgorithm)) {
+                log.warning(String.format("Block %d of chunk %s from node '%s' is corrupt, request it from another source",
+                    block, chunk.getChecksum(), source.node.getId()));
+                // bytes may have overwritten a block received from another source
+                invalidateBlock(block);
+                dropSource(source);
+                requestBlocks();
+                return;
+            }
+            blockChecksums[block] = checksum;
+            verifiedBlocks.set(block);
+        } else {
+            unverifiedWrites = true;
+        }
+
+        chunk.setBlockReceived(block);
+        writer.getJournal().blockReceived(chunk, block);
+
+        // first copy wins, withdraw the duplicate requests of the block
+        sources.values().forEach(s -> s.assignedBlocks.remove(block));
+        cancelRequests(block);
+
+        // update moving average of the source's throughput
+        long currentTime = System.currentTimeMillis();
+        double sample = chunk.getBlockSize(block) / (double) Math.max(1, currentTime - source.lastProgress);
+        source.throughput = source.throughput == 0 ? sample : THROUGHPUT_WEIGHT * sample + (1 - THROUGHPUT_WEIGHT) * source.throughput;
+        source.node.getScore().transferred(chunk.getBlockSize(block), currentTime - source.lastProgress);
+        if (!source.firstByteMeasured) {
+            source.firstByteMeasured = true;
+            source.node.getScore().firstByte(request.stream.getAnswerTime() - source.acceptedAt);
+        }
+        source.lastProgress = currentTime;
+
+        requestBlocks();
+    }
+
+    synchronized private void blockFailed(BlockCallback request) {
+        requests.remove(request);
+        if (finished || request.stream.isCancelled()) {
+            return;
+        }
+        Source source = request.source;
+        int block = request.block;
+        boolean written = request.stream.hasWritten();
+        log.warning(String.format("Download of block %d of chunk %s from node '%s' failed", block, chunk.getChecksum(), source.node.getId()));
+        if (written) {
+            // incomplete bytes may have overwritten a block received from another source
+            invalidateBlock(block);
+        }
+        dropSource(source);
+        requestBlocks();
+    }
+
+    private void invalidateBlock(int block) {
+        chunk.clearBlockReceived(block);
+        verifiedBlocks.clear(block);
+        blockChecksums[block] = null;
+    }
+
+    private void dropSource(Source source) {
+        if (!source.done) {
+            source.node.getScore().failed();
+            withdrawRequest(source);
+        }
+        source.done = true;
+        // blocks of the source get assigned to other sources
+        source.assignedBlocks.clear();
+    }
+
+    /**
+     * Cancels the outstanding requests of a block, or all requests if block is null
+     */
+    private void cancelRequests(Integer block) {
+        Iterator<BlockCallback> it = requests.iterator();
+        while (it.hasNext()) {
+            BlockCallback request = it.next();
+            if (block != null && request.block != block) {
+                continue;
+            }
+            it.remove();
+            request.stream.cancel();
+            if (request.stream.hasWritten()) {
+                // bytes of the canceled copy may be mixed with the received one
+                unverifiedWrites = true;
+            }
+            TRANSFER_SERVICE.cancel(request.source.node, request.stream);
+        }
+    }
+
+    private void checkFinished() {
+        if (finished) {
+            return;
+        }
+        if (chunk.nextMissingBlock(0) < 0) {
+            finish(true);
+            return;
+        }
+        // wait as long as a source is active or did not answer yet
+        boolean hasSource = sources.values().stream().anyMatch(s -> !s.done);
+        if (!hasSource) {
+            finish(false);
+        }
+    }
+
+    private void finish(boolean allBlocksReceived) {
+        finished = true;
+        cancelRequests(null);
+        releaseSources();
+
+        if (!allBlocksReceived) {
+            callback.fail();
+            return;
+        }
+
+        // flush and verification read the whole chunk, blocks of other chunks keep arriving meanwhile
+        boolean allBlocksVerified = ! unverifiedWrites && verifiedBlocks.cardinality() == chunk.getBlockCount();
+        List<String> verifiedBlockChecksums = allBlocksVerified ? Arrays.asList(blockChecksums.clone()) : null;
+        CHECKSUM_SERVICE.verify(() -> complete(verifiedBlockChecksums));
+    }
+
+    /**
+     * Writes the complete chunk to the download file and reports its checksum, runs outside the lock
+     * @param verifiedBlockChecksums checksums of the blocks, if every block matched the tree root
+     */
+    private void complete(List<String> verifiedBlockChecksums) {
+        // the chunk gets read from the download file, by the verification or by uploads
+        try {
+            writer.flush();
+        } catch (IOException e) {
+            log.log(Level.WARNING, String.format("Could not write chunk %s to download file", chunk.getChecksum()), e);
+            callback.fail();
+            return;
+        }
+
+        if (verifiedBlockChecksums != null) {
+            // every block matched the tree root, the chunk is correct without re-hashing
+            chunk.setBlockChecksums(verifiedBlockChecksums);
+            callback.transferred(chunk.getChecksum());
+            return;
+        }
+
+        // blocks may have arrived unverified, or in a previous run, verify the whole chunk
+        List<String> receivedBlockChecksums = new ArrayList<>(chunk.getBlockCount());
+        String checksum = CHECKSUM_SERVICE.calculateChecksum(writer.getPath().toString(), chunk.getOffset(), chunk.getSize(), receivedBlockChecksums);
+        if (checksum == null) {
+            callback.fail();
+            return;
+        }
+        if (checksum.equals(chunk.getChecksum())) {
+            // keep block checksums, to prove blocks to other downloaders
+            chunk.setBlockChecksums(receivedBlockChecksums);
+        }
+        callback.transferred(checksum);
+    }
+
+    private void releaseSources() {
+        // uploaders can free their slots
+        sources.values().stream()
+            .filter(s -> s.port >= 0)
+            .forEach(s -> release(s.node));
+        // and their queue positions
+        sources.values().stream()
+            .filter(s -> !s.done)
+            .forEach(this::withdrawRequest);
+    }
+
+    /**
+     * Cancels the download request of a source which did not accept yet, it may be waiting in the upload queue
+     */
+    private void withdrawRequest(Source source) {
+        boolean denied = source.answered && source.queuedUntil == 0;
+        if (source.port >= 0 || denied) {
+            return;
+        }
+        ShareCommand<DownloadRequest> msg = new ShareCommand<>(ShareCommand.ShareCommandType.CANCEL);
+        msg.addData(new DownloadRequest(chunk.getFileId(), localNodeId, chunk.getOffset(), chunk.getChecksum()));
+        NETWORK_SERVICE.sendCommand(msg, source.node);
+    }
+
+    private void release(Node node) {
+        TRANSFER_SERVICE.send(node, new TransferFrame(TransferFrame.FrameType.RELEASE, localNodeId,
+            chunk.getFileId(), chunk.getChecksum(), chunk.getOffset(), chunk.getOffset(), 0));
+    }
+}
@@ -0,0 +1,159 @@
+/*
+ * Copyright (c) 2018. Markus Monz
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package net.impl;
+
+import java.util.ArrayDeque;
+import java.util.Deque;
+import java.util.concurrent.Semaphore;
+import java.util.logging.Logger;
+import java.util.stream.Collectors;
+
+/**
+ * Adapts the count of concurrently downloading chunks (AIMD). The limit grows by one
+ * while the goodput keeps rising and all download tokens are in use, and gets cut in
+ * half when timeouts or denied requests pile up. Inflated chunk latency without more
+ * goodput holds the limit, requests are only queueing up at the uploaders then.
+ */
+public class DownloadConcurrencyController {
+    private static final Logger log = Logger.getLogger(DownloadConcurrencyController.class.getName());
+    private static final int MIN_LIMIT = 1;
+    private static final int MAX_LIMIT = 64;
+    private static final int CONGESTION_THRESHOLD = 2; // congestion signals per period
+    private static final double DECREASE_FACTOR = 0.5;
+    private static final double GOODPUT_TOLERANCE = 0.95; // goodput counts as rising, within measuring noise
+    private static final double LATENCY_FACTOR = 2.0; // latency inflation compared to the best seen latency
+    private static final double LATENCY_WEIGHT = 0.3;
+    private static final int HISTORY_SIZE = 20;
+
+    /**
+     * Semaphore with adjustable permits, reducing may leave less than zero available
+     */
+    public static class Tokens extends Semaphore {
+        private static final long serialVersionUID = 1L;
+
+        public Tokens(int permits) {
+            super(permits);
+        }
+
+        @Override
+        public void reducePermits(int reduction) {
+            super.reducePermits(reduction);
+        }
+    }
+
+    private Tokens tokens;
+    private int limit;
+    private Deque<Integer> history;
+
+    private long lastAdjust;
+    private long bytes; // downloaded since last adjust
+    private int congestionSignals; // since last adjust
+    private long goodput; // bytes per second
+    private double latency; // moving average, milliseconds per MByte
+    private double minLatency;
+
+    public DownloadConcurrencyController(int initialLimit) {
+        this.limit = Math.max(MIN_LIMIT, Math.min(MAX_LIMIT, initialLimit));
+        this.tokens = new Tokens(limit);
+        this.history = new ArrayDeque<>(HISTORY_SIZE);
+        this.history.add(limit);
+        this.lastAdjust = System.currentTimeMillis();
+    }
+
+    public Tokens getTokens() {
+        return tokens;
+    }
+
+    synchronized public int getLimit() {
+        return limit;
+    }
+
+    synchronized public long getGoodput() {
+        return goodput;
+    }
+
+    /**
+     * @return recent limits, oldest first
+     */
+    synchronized public String getHistory() {
+        return history.stream().map(String::valueOf).collect(Collectors.joining(" "));
+    }
+
+    /**
+     * @param size bytes of the downloaded chunk
+     * @param millis time from requesting to verifying the chunk
+     */
+    synchronized public void chunkDownloaded(long size, long millis) {
+        bytes += size;
+        if (size <= 0) {
+            return;
+        }
+        double sample = millis / (size / (1024.0 * 1024.0));
+        latency = latency == 0 ? sample : LATENCY_WEIGHT * sample + (1 - LATENCY_WEIGHT) * latency;
+        minLatency = minLatency == 0 ? sample : Math.min(minLatency, sample);
+    }
+
+    /**
+     * A chunk request timed out, was denied or its transfer failed
+     */
+    synchronized public void congestion() {
+        congestionSignals++;
+    }
+
+    /**
+     * Adapts the limit to the measurements since the last call, gets called periodically
+     */
+    synchronized public void adjust() {
+        long currentTime = System.currentTimeMillis();
+        long period = Math.max(1, currentTime - lastAdjust);
+        long lastGoodput = goodput;
+        goodput = bytes * 1000 / period;
+        // all tokens in use, otherwise a higher limit would not be used
+        boolean limited = tokens.availablePermits() <= 0;
+
+        int newLimit = limit;
+        if (congestionSignals >= CONGESTION_THRESHOLD) {
+            newLimit = (int) Math.max(MIN_LIMIT, Math.floor(limit * DECREASE_FACTOR));
+        } else if (limited && goodput >= lastGoodput * GOODPUT_TOLERANCE && !(latency > minLatency * LATENCY_FACTOR && goodput <= lastGoodput)) {
+            newLimit = Math.min(MAX_LIMIT, limit + 1);
+        }
+        if (newLimit != limit) {
+            log.info(String.format("Download limit %d -> %d, goodput %d kByte/s, congestion signals %d, latency %.0f ms/MByte",
+                limit, newLimit, goodput / 1024, congestionSignals, latency));
+            setLimit(newLimit);
+        }
+
+        history.add(limit);
+        if (history.size() > HISTORY_SIZE) {
+            history.poll();
+        }
+        // let the best latency age, paths may have changed
+        minLatency *= 1.01;
+        bytes = 0;
+        congestionSignals = 0;
+        lastAdjust = currentTime;
+    }
+
+    private void setLimit(int newLimit) {
+        if (newLimit > limit) {
+            tokens.release(newLimit - limit);
+        } else {
+            tokens.reducePermits(limit - newLimit);
+        }
+        limit = newLimit;
+    }
+}
@@ -0,0 +1,378 @@
+/*
+ * Copyright (c) 2018. Markus Monz
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package net.impl;
+
+import net.data.DownloadStream;
+import net.data.TransferFrame;
+import net.decl.TransferHandler;
+
+import java.io.EOFException;
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.SocketChannel;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Deque;
+import java.util.List;
+import java.util.UUID;
+import java.util.concurrent.Executor;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * Persistent data connection to one uploading node. Requests get pipelined,
+ * answers arrive in request order and their payload gets written to disk.
+ * Reading stops while the write buffers of the download files are full.
+ */
+public class DownloadConnection implements TransferHandler {
+    private static final Logger log = Logger.getLogger(DownloadConnection.class.getName());
+    private static final int RECEIVE_BUFFER_SIZE = 1024 * 1024; // 1 MByte
+    private static final int MIN_WRITE_SIZE = RECEIVE_BUFFER_SIZE / 2; // write large pieces to disk
+
+    private UUID nodeId;
+    private List<String> ips;
+    private int port;
+    private TransferLoop loop;
+    private Executor callbacks;
+    private long timeout;
+    private TokenBucket bucket;
+    private TokenBucket globalBucket;
+
+    private SocketChannel channel;
+    private SelectionKey key;
+    private int ipIndex;
+    private ByteBuffer in;
+    private ByteBuffer out;
+    private Deque<TransferFrame> control;
+    private Deque<DownloadStream> unsent;
+    private Deque<DownloadStream> sent;
+    private DownloadStream receiving;
+    private volatile long lastActivity;
+    private volatile boolean throttled;
+    private boolean writeBlocked; // received bytes wait for write buffer space
+
+    public DownloadConnection(UUID nodeId, List<String> ips, int port, TransferLoop loop, Executor callbacks, long timeout,
+                              TokenBucket bucket, TokenBucket globalBucket) {
+        this.nodeId = nodeId;
+        this.ips = new ArrayList<>(ips);
+        this.port = port;
+        this.loop = loop;
+        this.callbacks = callbacks;
+        this.timeout = timeout;
+        this.bucket = bucket;
+        this.globalBucket = globalBucket;
+        this.control = new ArrayDeque<>();
+        this.unsent = new ArrayDeque<>();
+        this.sent = new ArrayDeque<>();
+    }
+
+    public UUID getNodeId() {
+        return nodeId;
+    }
+
+    public int getPort() {
+        return port;
+    }
+
+    public TransferLoop getLoop() {
+        return loop;
+    }
+
+    /**
+     * Queues a request, connects if required. Must be called on the loop's thread.
+     */
+    public void enqueue(DownloadStream stream) {
+        unsent.add(stream);
+        if (channel == null) {
+            ipIndex = 0;
+            connect();
+        } else {
+            updateInterest();
+        }
+    }
+
+    /**
+     * Queues a frame without answer, e.g. RELEASE. Must be called on the loop's thread.
+     */
+    public void enqueue(TransferFrame frame) {
+        if (channel == null) {
+            // nothing to tell a node without connection
+            log.fine("Dropped transfer frame, not connected: " + frame);
+            return;
+        }
+        control.add(frame);
+        updateInterest();
+    }
+
+    /**
+     * Withdraws the stream's request, its answer gets discarded. Must be called on the loop's thread.
+     */
+    public void cancel(DownloadStream stream) {
+        if (unsent.remove(stream)) {
+            // never requested
+            callbacks.execute(stream::fail);
+        } else if (sent.contains(stream) && channel != null) {
+            // not answered yet, the uploader skips the range
+            TransferFrame request = stream.getRequest();
+            control.add(new TransferFrame(TransferFrame.FrameType.CANCEL, request.getNodeId(), request.getFileId(),
+                request.getChunkChecksum(), request.getChunkOffset(), request.getOffset(), request.getLength()));
+            updateInterest();
+        }
+    }
+
+    private void connect() {
+        try {
+            if (in == null) {
+                in = ByteBuffer.allocateDirect(RECEIVE_BUFFER_SIZE);
+            }
+            in.clear();
+            out = null;
+            lastActivity = System.currentTimeMillis();
+
+            channel = SocketChannel.open();
+            channel.configureBlocking(false);
+            channel.socket().setKeepAlive(true);
+            key = loop.register(channel, SelectionKey.OP_CONNECT, this);
+            if (channel.connect(new InetSocketAddress(ips.get(ipIndex), port))) {
+                updateInterest();
+            }
+        } catch (IOException e) {
+            log.log(Level.WARNING, "Could not connect to node '" + nodeId + "' with IP: " + ips.get(ipIndex), e);
+            connectFailed();
+        }
+    }
+
+    private void connectFailed() {
+        closeChannel();
+        ipIndex++;
+        if (ipIndex < ips.size()) {
+            // try next ip address of node
+            connect();
+        } else {
+            failAll();
+        }
+    }
+
+    @Override
+    public void handle(SelectionKey key) throws IOException {
+        if (key.isConnectable()) {
+            try {
+                channel.finishConnect();
+                lastActivity = System.currentTimeMillis();
+            } catch (IOException e) {
+                log.log(Level.WARNING, "Could not connect to node '" + nodeId + "' with IP: " + ips.get(ipIndex), e);
+                connectFailed();
+                return;
+            }
+        }
+        if (key.isReadable()) {
+            receive();
+        }
+        if (key.isValid() && key.isWritable()) {
+            sendRequests();
+        }
+        updateInterest();
+    }
+
+    private void sendRequests() throws IOException {
+        for (;;) {
+            if (out == null && !control.isEmpty()) {
+                out = control.poll().encode();
+            }
+            if (out == null) {
+                DownloadStream stream = unsent.poll();
+                if (stream == null) {
+                    break;
+                }
+                out = stream.getRequest().encode();
+                // answers arrive in request order
+                sent.add(stream);
+            }
+            channel.write(out);
+            if (out.hasRemaining()) {
+                break;
+            }
+            out = null;
+        }
+    }
+
+    private void receive() throws IOException {
+        if (in.hasRemaining()) {
+            long granted = TokenBucket.take(bucket, globalBucket, in.remaining());
+            if (granted > 0) {
+                // read no more than granted, the uploader gets slowed down by tcp flow control
+                int limit = in.limit();
+                in.limit(in.position() + (int) granted);
+                int len = channel.read(in);
+                in.limit(limit);
+                if (len == -1) {
+                    throw new EOFException("Data connection was closed by node '" + nodeId + "'");
+                }
+                TokenBucket.giveBack(bucket, globalBucket, granted - len);
+                if (len > 0) {
+                    lastActivity = System.currentTimeMillis();
+                }
+            } else {
+                // out of bandwidth, continue on a later tick
+                throttled = true;
+                loop.throttle(this);
+            }
+        }
+
+        consumeReceived();
+    }
+
+    private void consumeReceived() throws IOException {
+        in.flip();
+        while (in.hasRemaining()) {
+            if (receiving == null) {
+                TransferFrame answer = TransferFrame.read(in);
+                if (answer == null) {
+                    break;
+                }
+                DownloadStream stream = sent.poll();
+                if (stream == null || !stream.isAnswer(answer)) {
+                    throw new IOException("Unexpected transfer frame: " + answer);
+                }
+                if (answer.getType() == TransferFrame.FrameType.DATA) {
+                    stream.begin(answer);
+                    receiving = stream;
+                } else {
+                    log.warning("Transfer request was denied: " + answer);
+                    callbacks.execute(stream::fail);
+                    continue;
+                }
+            }
+
+            // consume payload in large pieces, unless the stream ends within the buffer
+            long required = Math.min(receiving.getRemaining(), MIN_WRITE_SIZE);
+            if (in.remaining() < required) {
+                break;
+            }
+            int payloadLength = (int) Math.min(in.remaining(), receiving.getRemaining());
+            ByteBuffer payload = in.slice();
+            payload.limit(payloadLength);
+            int consumed = receiving.consume(payload);
+            in.position(in.position() + consumed);
+            if (consumed < payloadLength) {
+                // disk is behind, stop reading until buffered writes drained,
+                // the uploader gets slowed down by tcp flow control
+                writeBlocked = true;
+                throttled = true;
+                loop.throttle(this);
+                break;
+            }
+
+            if (receiving.getRemaining() == 0) {
+                // verify
+                callbacks.execute(receiving::complete);
+                receiving = null;
+            }
+        }
+        in.compact();
+    }
+
+    private void updateInterest() {
+        if (key == null || !key.isValid()) {
+            return;
+        }
+        if (!channel.isConnected()) {
+            key.interestOps(SelectionKey.OP_CONNECT);
+            return;
+        }
+        int ops = throttled ? 0 : SelectionKey.OP_READ;
+        if (out != null || !control.isEmpty() || !unsent.isEmpty()) {
+            ops |= SelectionKey.OP_WRITE;
+        }
+        key.interestOps(ops);
+    }
+
+    @Override
+    public boolean resume() {
+        if (writeBlocked) {
+            writeBlocked = false;
+            try {
+                // the received bytes may be all there is, the channel may not become readable again
+                consumeReceived();
+            } catch (IOException e) {
+                log.log(Level.WARNING, "Transfer failed, close connection", e);
+                close();
+                return true;
+            }
+            if (writeBlocked) {
+                return false;
+            }
+            lastActivity = System.currentTimeMillis();
+        }
+        throttled = false;
+        updateInterest();
+        return true;
+    }
+
+    /**
+     * @return time bytes were received last, or now if reads are held back by the bandwidth limit
+     */
+    public long getLastActivity() {
+        return throttled ? System.currentTimeMillis() : lastActivity;
+    }
+
+    @Override
+    public void checkTimeout(long currentTime) {
+        if (channel == null) {
+            return;
+        }
+        // a node is not to blame for a slow disk
+        boolean waiting = !channel.isConnected() || receiving != null || !sent.isEmpty();
+        if (waiting && !writeBlocked && (currentTime - lastActivity) > timeout) {
+            log.warning("Data connection to node '" + nodeId + "' timed out");
+            close();
+        }
+    }
+
+    @Override
+    public void close() {
+        closeChannel();
+        failAll();
+    }
+
+    private void closeChannel() {
+        if (channel != null) {
+            try {
+                channel.close();
+            } catch (IOException e) {
+                log.log(Level.WARNING, "Could not close data connection", e);
+            }
+        }
+        channel = null;
+        key = null;
+        writeBlocked = false;
+    }
+
+    private void failAll() {
+        control.clear();
+        if (receiving != null) {
+            callbacks.execute(receiving::fail);
+            receiving = null;
+        }
+        sent.forEach(s -> callbacks.execute(s::fail));
+        sent.clear();
+        unsent.forEach(s -> callbacks.execute(s::fail));
+        unsent.clear();
+    }
+}
@@ -0,0 +1,89 @@
+/*
+ * Copyright (c) 2018. Markus Monz
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package net.impl;
+
+import local.ServiceLocator;
+import net.NetworkService;
+import net.data.Node;
+import net.data.NodeScore;
+
+import java.util.List;
+import java.util.Random;
+import java.util.UUID;
+
+/**
+ * Chooses the node to request a chunk from, weighted by the node scores. A share of the
+ * requests goes to random nodes, so nodes without recent transfers get probed again.
+ */
+public class PeerSelector {
+    private static final NetworkService NETWORK_SERVICE = (NetworkService) ServiceLocator.getInstance().getService(ServiceLocator.NETWORK_SERVICE);
+    private static final double EXPLORATION = 0.1; // share of random choices
+
+    private Random random = new Random();
+
+    /**
+     * @param nodeIds candidates, e.g. the replica nodes of a chunk
+     * @return chosen node, or null if there are no candidates
+     */
+    public UUID select(List<UUID> nodeIds) {
+        if (nodeIds.isEmpty()) {
+            return null;
+        }
+        if (nodeIds.size() == 1 || random.nextDouble() < EXPLORATION) {
+            return nodeIds.get(random.nextInt(nodeIds.size()));
+        }
+
+        // average score of the scored nodes
+        double[] scores = new double[nodeIds.size()];
+        double[] confidences = new double[nodeIds.size()];
+        double scoreSum = 0;
+        double confidenceSum = 0;
+        for (int i = 0; i < nodeIds.size(); i++) {
+            Node node = NETWORK_SERVICE.getNode(nodeIds.get(i));
+            if (node == null) {
+                continue;
+            }
+            NodeScore score = node.getScore();
+            scores[i] = score.getScore();
+            confidences[i] = score.getConfidence();
+            scoreSum += scores[i] * confidences[i];
+            confidenceSum += confidences[i];
+        }
+        if (confidenceSum == 0) {
+            return nodeIds.get(random.nextInt(nodeIds.size()));
+        }
+        double average = scoreSum / confidenceSum;
+
+        // unknown and stale scores move towards the average
+        double total = 0;
+        for (int i = 0; i < scores.length; i++) {
+            scores[i] = average + (scores[i] - average) * confidences[i];
+            total += scores[i];
+        }
+        if (total <= 0) {
+            return nodeIds.get(random.nextInt(nodeIds.size()));
+        }
+        double r = random.nextDouble() * total;
+        for (int i = 0; i < scores.length; i++) {
+            r -= scores[i];
+            if (r < 0) {
+                return nodeIds.get(i);
+            }
+        }
+        return nodeIds.get(nodeIds.size() - 1);
+    }
+}
@@ -0,0 +1,125 @@
+/*
+ * Copyright (c) 2018. Markus Monz
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package net.impl;
+
+/**
+ * Token bucket limiting the rate of transferred bytes. Tokens get refilled on
+ * every take from the elapsed time, so there is no timer and no allocation per
+ * transfer. The limit is shared by reference, a changed limit applies to all
+ * buckets using it at once.
+ */
+public class TokenBucket {
+    private static final long NANOS_PER_SECOND = 1_000_000_000L;
+
+    /**
+     * Rate and burst of one or more buckets, can be changed at runtime
+     */
+    public static class Limit {
+        private volatile long rate; // bytes per second, 0 is unlimited
+        private volatile long burst; // max bytes taken at once after idling
+
+        public Limit(long rate, long burst) {
+            set(rate, burst);
+        }
+
+        public void set(long rate, long burst) {
+            this.burst = Math.max(1, burst);
+            this.rate = Math.max(0, rate);
+        }
+
+        public long getRate() {
+            return rate;
+        }
+
+        public long getBurst() {
+            return burst;
+        }
+    }
+
+    private final Limit limit;
+    private long tokens;
+    private long lastRefill;
+
+    public TokenBucket(Limit limit) {
+        this.limit = limit;
+        this.tokens = limit.getBurst();
+        this.lastRefill = System.nanoTime();
+    }
+
+    /**
+     * @param max bytes to transfer
+     * @return bytes allowed to transfer now, between 0 and max
+     */
+    synchronized public long take(long max) {
+        long rate = limit.getRate();
+        if (rate == 0) {
+            return max;
+        }
+        refill(rate, limit.getBurst());
+        long granted = Math.min(max, tokens);
+        tokens -= granted;
+        return granted;
+    }
+
+    /**
+     * @param unused bytes taken but not transferred
+     */
+    synchronized public void giveBack(long unused) {
+        if (limit.getRate() > 0 && unused > 0) {
+            tokens = Math.min(tokens + unused, limit.getBurst());
+        }
+    }
+
+    private void refill(long rate, long burst) {
+        long now = System.nanoTime();
+        if (tokens >= burst) {
+            // full, or burst was lowered
+            tokens = burst;
+            lastRefill = now;
+            return;
+        }
+        long elapsed = now - lastRefill;
+        if (elapsed >= (burst - tokens) * NANOS_PER_SECOND / rate) {
+            tokens = burst;
+            lastRefill = now;
+            return;
+        }
+        long added = elapsed * rate / NANOS_PER_SECOND;
+        tokens += added;
+        // keep the remainder of the elapsed time, rounding must not lose bytes at high rates
+        lastRefill += added * NANOS_PER_SECOND / rate;
+    }
+
+    /**
+     * Takes from both buckets, e.g. of a peer and the global one
+     * @return bytes allowed to transfer now, between 0 and max
+     */
+    public static long take(TokenBucket peer, TokenBucket global, long max) {
+        long granted = peer.take(max);
+        if (granted == 0) {
+            return 0;
+        }
+        long globalGranted = global.take(granted);
+        peer.giveBack(granted - globalGranted);
+        return globalGranted;
+    }
+
+    public static void giveBack(TokenBucket peer, TokenBucket global, long unused) {
+        peer.giveBack(unused);
+        global.giveBack(unused);
+    }
+}
@@ -0,0 +1,132 @@
+/*
+ * Copyright (c) 2018. Markus Monz
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package net.impl;
+
+import net.decl.TransferHandler;
+
+import java.io.IOException;
+import java.nio.channels.ClosedChannelException;
+import java.nio.channels.SelectableChannel;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * One I/O thread driving many data connections with a selector.
+ * Channels get registered and handlers get called on the loop's thread only,
+ * other threads hand over work with execute. Handlers out of bandwidth tokens
+ * throttle themselves and get resumed on short ticks.
+ */
+public class TransferLoop implements Runnable {
+    private static final Logger log = Logger.getLogger(TransferLoop.class.getName());
+    private static final long SELECT_TIMEOUT = TimeUnit.SECONDS.toMillis(1);
+    private static final long THROTTLE_TICK = 1; // milliseconds
+
+    private Selector selector;
+    private Queue<Runnable> tasks;
+    private List<TransferHandler> throttled;
+
+    public TransferLoop() throws IOException {
+        this.selector = Selector.open();
+        this.tasks = new ConcurrentLinkedQueue<>();
+        this.throttled = new ArrayList<>();
+    }
+
+    public void execute(Runnable task) {
+        tasks.add(task);
+        selector.wakeup();
+    }
+
+    /**
+     * Must be called on the loop's thread, e.g. within an executed task
+     */
+    public SelectionKey register(SelectableChannel channel, int ops, TransferHandler handler) throws ClosedChannelException {
+        return channel.register(selector, ops, handler);
+    }
+
+    /**
+     * Resumes the handler on the next ticks, until it is not throttled anymore.
+     * Must be called on the loop's thread.
+     */
+    public void throttle(TransferHandler handler) {
+        if (!throttled.contains(handler)) {
+            throttled.add(handler);
+        }
+    }
+
+    @Override
+    public void run() {
+        while (!Thread.currentThread().isInterrupted()) {
+            try {
+                selector.select(throttled.isEmpty() ? SELECT_TIMEOUT : THROTTLE_TICK);
+
+                Runnable task;
+                while ((task = tasks.poll()) != null) {
+                    task.run();
+                }
+
+                for (int i = throttled.size() - 1; i >= 0; i--) {
+                    if (throttled.get(i).resume()) {
+                        throttled.remove(i);
+                    }
+                }
+
+                Iterator<SelectionKey> it = selector.selectedKeys().iterator();
+                while (it.hasNext()) {
+                    SelectionKey key = it.next();
+                    it.remove();
+
+                    TransferHandler handler = (TransferHandler) key.attachment();
+                    try {
+                        if (key.isValid()) {
+                            handler.handle(key);
+                        }
+                    } catch (Exception e) {
+                        log.log(Level.WARNING, "Transfer failed, close connection", e);
+                        handler.close();
+                    }
+                }
+
+                long currentTime = System.currentTimeMillis();
+                // handlers may register new channels on timeout, iterate over a copy
+                for (SelectionKey key : new ArrayList<>(selector.keys())) {
+                    if (key.isValid()) {
+                        ((TransferHandler) key.attachment()).checkTimeout(currentTime);
+                    }
+                }
+            } catch (Exception e) {
+                log.log(Level.SEVERE, "Ooops!", e);
+            }
+        }
+
+        try {
+            for (SelectionKey key : new ArrayList<>(selector.keys())) {
+                ((TransferHandler) key.attachment()).close();
+            }
+            selector.close();
+        } catch (IOException e) {
+            log.log(Level.WARNING, "Could not close selector", e);
+        }
+    }
+}
@@ -0,0 +1,137 @@
+/*
+ * Copyright (c) 2018. Markus Monz
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package net.impl;
+
+import local.ServiceLocator;
+import net.NetworkService;
+import net.data.Node;
+
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+import java.util.Set;
+import java.util.UUID;
+import java.util.concurrent.TimeUnit;
+import java.util.logging.Logger;
+import java.util.stream.Collectors;
+
+/**
+ * Rotates the upload slots among the nodes requesting chunks (choke/unchoke). Every rechoke
+ * the nodes which uploaded the most to us get the regular slots, ties go to the nodes waiting
+ * longest. One optimistic slot rotates among the other nodes, newcomers first, so they get a
+ * chance to reciprocate. Choked nodes may use idle slots until an unchoked node needs them.
+ */
+public class UploadChoker {
+    private static final Logger log = Logger.getLogger(UploadChoker.class.getName());
+    private static final NetworkService NETWORK_SERVICE = (NetworkService) ServiceLocator.getInstance().getService(ServiceLocator.NETWORK_SERVICE);
+    private static final int OPTIMISTIC_PERIODS = 3; // rechokes an optimistic unchoke lasts
+    private static final long INTEREST_TIMEOUT = TimeUnit.SECONDS.toMillis(30); // nodes without requests get forgotten
+
+    private int slots;
+    private Map<UUID, Long> interested; // map<nodeId, last request time>
+    private Map<UUID, Long> receivedSnapshot; // map<nodeId, bytes received from the node until the last rechoke>
+    private Map<UUID, Long> lastUnchoked; // map<nodeId, time of the last unchoke>
+    private Set<UUID> unchoked;
+    private UUID optimistic;
+    private int optimisticPeriods;
+    private Random random;
+
+    public UploadChoker(int slots) {
+        this.slots = slots;
+        this.interested = new HashMap<>();
+        this.receivedSnapshot = new HashMap<>();
+        this.lastUnchoked = new HashMap<>();
+        this.unchoked = new HashSet<>();
+        this.random = new Random();
+    }
+
+    /**
+     * The node requested a chunk
+     */
+    synchronized public void requested(UUID nodeId) {
+        interested.put(nodeId, System.currentTimeMillis());
+    }
+
+    synchronized public boolean isUnchoked(UUID nodeId) {
+        return unchoked.contains(nodeId);
+    }
+
+    /**
+     * @param nodeId requesting node
+     * @param nodeUploads uploads currently admitted to the node
+     * @return true if the node may get another upload slot
+     */
+    synchronized public boolean mayUpload(UUID nodeId, int nodeUploads) {
+        if (unchoked.contains(nodeId)) {
+            // unchoked nodes share the slots evenly
+            int fairShare = (int) Math.ceil(slots / (double) unchoked.size());
+            return nodeUploads < fairShare;
+        }
+        // choked nodes use an idle slot, one at a time
+        return nodeUploads == 0;
+    }
+
+    /**
+     * Chooses the unchoked nodes of the next period, gets called periodically
+     */
+    synchronized public void rechoke() {
+        long currentTime = System.currentTimeMillis();
+        interested.values().removeIf(lastRequest -> (currentTime - lastRequest) > INTEREST_TIMEOUT);
+        receivedSnapshot.keySet().retainAll(interested.keySet());
+        lastUnchoked.keySet().retainAll(interested.keySet());
+
+        // reciprocation, bytes the nodes uploaded to us since the last rechoke
+        Map<UUID, Long> received = new HashMap<>();
+        for (UUID nodeId : interested.keySet()) {
+            Node node = NETWORK_SERVICE.getNode(nodeId);
+            long total = node == null ? 0 : node.getScore().getBytesTransferred();
+            received.put(nodeId, total - receivedSnapshot.getOrDefault(nodeId, 0L));
+            receivedSnapshot.put(nodeId, total);
+        }
+
+        int regularSlots = slots > 1 ? slots - 1 : slots;
+        Set<UUID> next = interested.keySet().stream()
+            .sorted(Comparator.comparing((UUID id) -> received.get(id)).reversed()
+                .thenComparing(id -> lastUnchoked.getOrDefault(id, 0L)))
+            .limit(regularSlots)
+            .collect(Collectors.toSet());
+
+        // optimistic unchoke, rotates every few periods
+        optimisticPeriods++;
+        if (optimistic == null || !interested.containsKey(optimistic) || next.contains(optimistic) || optimisticPeriods >= OPTIMISTIC_PERIODS) {
+            optimistic = null;
+            optimisticPeriods = 0;
+            List<UUID> candidates = interested.keySet().stream().filter(id -> !next.contains(id)).collect(Collectors.toList());
+            List<UUID> newcomers = candidates.stream().filter(id -> !lastUnchoked.containsKey(id)).collect(Collectors.toList());
+            List<UUID> choice = newcomers.isEmpty() ? candidates : newcomers;
+            if (!choice.isEmpty() && slots > 1) {
+                optimistic = choice.get(random.nextInt(choice.size()));
+            }
+        }
+        if (optimistic != null) {
+            next.add(optimistic);
+        }
+
+        next.forEach(id -> lastUnchoked.put(id, currentTime));
+        unchoked = next;
+        log.fine(String.format("Unchoked nodes %s, optimistic %s", new ArrayList<>(unchoked), optimistic));
+    }
+}
@@ -0,0 +1,223 @@
+/*
+ * Copyright (c) 2018. Markus Monz
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package net.impl;
+
+import net.data.TransferFrame;
+import net.data.UploadSource;
+import net.decl.TransferHandler;
+import net.decl.UploadProvider;
+
+import java.io.EOFException;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.SocketChannel;
+import java.util.ArrayDeque;
+import java.util.Deque;
+import java.util.List;
+import java.util.ArrayList;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * Accepted data connection of a downloading node. Requests get answered one
+ * after another: read header, send answer header, send payload.
+ */
+public class UploadConnection implements TransferHandler {
+    private static final Logger log = Logger.getLogger(UploadConnection.class.getName());
+    private static final int REQUEST_BUFFER_SIZE = 4096;
+
+    private SocketChannel channel;
+    private SelectionKey key;
+    private UploadProvider provider;
+    private TransferLoop loop;
+    private long timeout;
+    private TokenBucket bucket;
+    private TokenBucket globalBucket;
+
+    private ByteBuffer in;
+    private Deque<TransferFrame> requests;
+    private List<TransferFrame> cancelled; // queued requests to answer with DENY
+    private TransferFrame current;
+    private ByteBuffer header;
+    private UploadSource source;
+    private long lastActivity;
+    private boolean throttled;
+
+    public UploadConnection(SocketChannel channel, UploadProvider provider, TransferLoop loop, long timeout, TokenBucket bucket, TokenBucket globalBucket) {
+        this.channel = channel;
+        this.provider = provider;
+        this.loop = loop;
+        this.timeout = timeout;
+        this.bucket = bucket;
+        this.globalBucket = globalBucket;
+        this.in = ByteBuffer.allocate(REQUEST_BUFFER_SIZE);
+        this.requests = new ArrayDeque<>();
+        this.cancelled = new ArrayList<>();
+        this.lastActivity = System.currentTimeMillis();
+    }
+
+    public void setKey(SelectionKey key) {
+        this.key = key;
+    }
+
+    @Override
+    public void handle(SelectionKey key) throws IOException {
+        if (key.isReadable()) {
+            readRequests();
+        }
+        sendAnswers();
+    }
+
+    private void readRequests() throws IOException {
+        int len = channel.read(in);
+        if (len == -1) {
+            throw new EOFException("Data connection was closed by remote node");
+        }
+
+        in.flip();
+        TransferFrame frame;
+        while ((frame = TransferFrame.read(in)) != null) {
+            if (frame.getType() == TransferFrame.FrameType.REQUEST || frame.getType() == TransferFrame.FrameType.RELEASE) {
+                // handled in order, a release follows the requests of its chunk
+                requests.add(frame);
+            } else if (frame.getType() == TransferFrame.FrameType.CANCEL) {
+                // only requests not answered yet can be withdrawn
+                for (TransferFrame request : requests) {
+                    if (isSameRange(request, frame)) {
+                        cancelled.add(request);
+                        break;
+                    }
+                }
+            } else {
+                log.info("Unknown transfer frame to dispatch: " + frame.getType());
+            }
+        }
+        in.compact();
+    }
+
+    private void sendAnswers() throws IOException {
+        for (;;) {
+            if (header != null) {
+                channel.write(header);
+                if (header.hasRemaining()) {
+                    break;
+                }
+                header = null;
+                lastActivity = System.currentTimeMillis();
+            }
+
+            if (source != null) {
+                long granted = TokenBucket.take(bucket, globalBucket, source.getRemaining());
+                if (granted == 0) {
+                    // out of bandwidth, continue on a later tick
+                    throttled = true;
+                    loop.throttle(this);
+                    break;
+                }
+                long written = source.transferTo(channel, granted);
+                TokenBucket.giveBack(bucket, globalBucket, granted - written);
+                if (written > 0) {
+                    lastActivity = System.currentTimeMillis();
+                }
+                if (!source.isDone()) {
+                    break;
+                }
+                finishUpload(true);
+            }
+
+            current = requests.poll();
+            if (current == null) {
+                break;
+            }
+            lastActivity = System.currentTimeMillis();
+            if (current.getType() == TransferFrame.FrameType.RELEASE) {
+                provider.releaseUpload(current);
+                current = null;
+                continue;
+            }
+
+            source = cancelled.remove(current) ? null : provider.openUpload(current);
+            if (source == null) {
+                header = new TransferFrame(TransferFrame.FrameType.DENY, current.getNodeId(), current.getFileId(),
+                    current.getChunkChecksum(), current.getChunkOffset(), current.getOffset(), 0).encode();
+            } else {
+                header = new TransferFrame(TransferFrame.FrameType.DATA, current.getNodeId(), current.getFileId(),
+                    current.getChunkChecksum(), current.getChunkOffset(), current.getOffset(), current.getLength(), source.getProof()).encode();
+            }
+        }
+
+        updateInterest();
+    }
+
+    private void updateInterest() {
+        // always read, to receive pipelined requests and to notice closed connections
+        int ops = SelectionKey.OP_READ;
+        if (!throttled && (header != null || source != null)) {
+            ops |= SelectionKey.OP_WRITE;
+        }
+        key.interestOps(ops);
+    }
+
+    @Override
+    public boolean resume() {
+        throttled = false;
+        if (key != null && key.isValid()) {
+            updateInterest();
+        }
+        return true;
+    }
+
+    private boolean isSameRange(TransferFrame request, TransferFrame cancel) {
+        return request.getType() == TransferFrame.FrameType.REQUEST
+            && request.getFileId().equals(cancel.getFileId())
+            && request.getChunkChecksum().equals(cancel.getChunkChecksum())
+            && request.getOffset() == cancel.getOffset();
+    }
+
+    private void finishUpload(boolean success) {
+        try {
+            source.close();
+        } catch (IOException e) {
+            log.log(Level.WARNING, "Could not close upload source", e);
+        }
+        source = null;
+        provider.closeUpload(current, success);
+        current = null;
+    }
+
+    @Override
+    public void checkTimeout(long currentTime) {
+        // idle connections stay open, only stalled uploads get dropped
+        if (source != null && (currentTime - lastActivity) > timeout) {
+            log.warning("Upload stalled, close data connection");
+            close();
+        }
+    }
+
+    @Override
+    public void close() {
+        if (source != null) {
+            finishUpload(false);
+        }
+        try {
+            channel.close();
+        } catch (IOException e) {
+            log.log(Level.WARNING, "Could not close data connection", e);
+        }
+    }
+}
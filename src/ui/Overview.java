@@ -16,16 +16,21 @@
 
 package ui;
 
+import data.FilePriority;
 import ui.controller.OverviewController;
 import ui.logic.DroppedFileListener;
 
 import javax.swing.*;
+import javax.swing.event.PopupMenuEvent;
+import javax.swing.event.PopupMenuListener;
 import javax.swing.text.Document;
 import java.awt.*;
 import java.awt.dnd.DropTarget;
 import java.awt.event.ActionEvent;
 import java.awt.event.ActionListener;
 import java.awt.event.KeyEvent;
+import java.awt.event.MouseAdapter;
+import java.awt.event.MouseEvent;
 import java.io.IOException;
 import java.util.Map;
 
@@ -115,6 +120,16 @@ public class Overview extends JFrame {
         description.setHorizontalAlignment(SwingConstants.CENTER);
 
         JList<String> files = new JList<>(SHARER_CONTROLLER.getFileListModel());
+        files.setComponentPopupMenu(defineFileMenu(files));
+        files.addMouseListener(new MouseAdapter() {
+            @Override
+            public void mousePressed(MouseEvent e) {
+                // right click selects the file the menu applies to
+                if (SwingUtilities.isRightMouseButton(e)) {
+                    files.setSelectedIndex(files.locationToIndex(e.getPoint()));
+                }
+            }
+        });
         JPanel filesPanel = new JPanel(new BorderLayout());
         filesPanel.add(files, BorderLayout.CENTER);
 
@@ -126,6 +141,38 @@ public class Overview extends JFrame {
         return p;
     }
 
+    private JPopupMenu defineFileMenu(JList<String> files) {
+        JPopupMenu menu = new JPopupMenu();
+
+        for (FilePriority priority : FilePriority.values()) {
+            JMenuItem item = new JMenuItem("Priority " + priority.name().toLowerCase());
+            item.addActionListener(e -> SHARER_CONTROLLER.setFilePriority(files.getSelectedValue(), priority));
+            menu.add(item);
+        }
+        menu.addSeparator();
+
+        JCheckBoxMenuItem stream = new JCheckBoxMenuItem("Stream (download in order)");
+        stream.addActionListener(e -> SHARER_CONTROLLER.setSequential(files.getSelectedValue(), stream.isSelected()));
+        menu.add(stream);
+
+        menu.addPopupMenuListener(new PopupMenuListener() {
+            @Override
+            public void popupMenuWillBecomeVisible(PopupMenuEvent e) {
+                stream.setSelected(SHARER_CONTROLLER.isSequential(files.getSelectedValue()));
+            }
+
+            @Override
+            public void popupMenuWillBecomeInvisible(PopupMenuEvent e) {
+            }
+
+            @Override
+            public void popupMenuCanceled(PopupMenuEvent e) {
+            }
+        });
+
+        return menu;
+    }
+
     private JPanel defineStatisticsList() {
         JPanel p = new JPanel(new BorderLayout(0, 10));
         JLabel description = new JLabel("Statistics");
@@ -133,7 +180,7 @@ public class Overview extends JFrame {
 
         Map<String, Document> statistics = SHARER_CONTROLLER.getStatisticsModels();
 
-        JPanel statisticsPanel = new JPanel(new GridLayout(6, 2));
+        JPanel statisticsPanel = new JPanel(new GridLayout(11, 2));
         statisticsPanel.setBorder(BorderFactory.createEmptyBorder(0, 10, 0, 10));
 
         statisticsPanel.add(new JLabel("Active downloading chunks:"));
@@ -172,6 +219,36 @@ public class Overview extends JFrame {
             false,
             SwingConstants.RIGHT));
 
+        statisticsPanel.add(new JLabel("Concurrent downloads limit:"));
+        statisticsPanel.add(newJTextFieldWithDocument(
+            statistics.get(OverviewController.STAT_DOWNLOAD_LIMIT),
+            false,
+            SwingConstants.RIGHT));
+
+        statisticsPanel.add(new JLabel("Download limit history:"));
+        statisticsPanel.add(newJTextFieldWithDocument(
+            statistics.get(OverviewController.STAT_DOWNLOAD_LIMIT_HISTORY),
+            false,
+            SwingConstants.RIGHT));
+
+        statisticsPanel.add(new JLabel("Download goodput (kByte/s):"));
+        statisticsPanel.add(newJTextFieldWithDocument(
+            statistics.get(OverviewController.STAT_DOWNLOAD_GOODPUT),
+            false,
+            SwingConstants.RIGHT));
+
+        statisticsPanel.add(new JLabel("Block requests from upload cache:"));
+        statisticsPanel.add(newJTextFieldWithDocument(
+            statistics.get(OverviewController.STAT_CACHE_HITS),
+            false,
+            SwingConstants.RIGHT));
+
+        statisticsPanel.add(new JLabel("Block requests mapping a chunk:"));
+        statisticsPanel.add(newJTextFieldWithDocument(
+            statistics.get(OverviewController.STAT_CACHE_MISSES),
+            false,
+            SwingConstants.RIGHT));
+
         JScrollPane scrollPane = new JScrollPane(statisticsPanel);
 
         p.add(description, BorderLayout.NORTH);
@@ -33,6 +33,10 @@ public class Settings extends JPanel {
     private static final OverviewController SHARE_CONTROLLER = OverviewController.getInstance();
     private JDialog dialog;
     private JTextField downloadDir;
+    private JTextField uploadRate;
+    private JTextField downloadRate;
+    private JTextField peerUploadRate;
+    private JTextField peerDownloadRate;
 
     public Settings(JDialog dialog) {
         this.dialog = dialog;
@@ -63,6 +67,29 @@ public class Settings extends JPanel {
         p.add(downloadDirLabel);
         p.add(downloadDir);
 
+        // bandwidth limits, in kByte/s
+        uploadRate = new JTextField(10);
+        downloadRate = new JTextField(10);
+        peerUploadRate = new JTextField(10);
+        peerDownloadRate = new JTextField(10);
+
+        JComponent previous = downloadDir;
+        JLabel[] rateLabels = {
+            new JLabel("Upload limit (kByte/s, 0 = unlimited):"),
+            new JLabel("Download limit (kByte/s, 0 = unlimited):"),
+            new JLabel("Upload limit per node (kByte/s):"),
+            new JLabel("Download limit per node (kByte/s):"),
+        };
+        JTextField[] rateFields = {uploadRate, downloadRate, peerUploadRate, peerDownloadRate};
+        for (int i = 0; i < rateFields.length; i++) {
+            layout.putConstraint(SpringLayout.WEST, rateLabels[i], 5, SpringLayout.WEST, p);
+            layout.putConstraint(SpringLayout.NORTH, rateLabels[i], 10, SpringLayout.SOUTH, previous);
+            layout.putConstraint(SpringLayout.WEST, rateFields[i], 5, SpringLayout.EAST, rateLabels[i]);
+            layout.putConstraint(SpringLayout.NORTH, rateFields[i], 10, SpringLayout.SOUTH, previous);
+            p.add(rateLabels[i]);
+            p.add(rateFields[i]);
+            previous = rateFields[i];
+        }
 
         return p;
     }
@@ -80,7 +107,7 @@ public class Settings extends JPanel {
                     // show restart hint // todo: implement settings reload mechanism
                     JOptionPane.showMessageDialog(
                         null,
-                        "New settings will be active after Sharer restart."
+                        "Bandwidth limits are active now, other settings will be active after Sharer restart."
                     );
 
                 } catch (IOException err) {
@@ -123,6 +150,11 @@ public class Settings extends JPanel {
             log.warning("Could not save scheduleDownloadRequest directory settings: '" + downloadDirectory + "'");
         }
 
+        setRate(config, Sharer.UPLOAD_RATE, uploadRate.getText());
+        setRate(config, Sharer.DOWNLOAD_RATE, downloadRate.getText());
+        setRate(config, Sharer.PEER_UPLOAD_RATE, peerUploadRate.getText());
+        setRate(config, Sharer.PEER_DOWNLOAD_RATE, peerDownloadRate.getText());
+
         return config;
     }
 
@@ -136,5 +168,21 @@ public class Settings extends JPanel {
         }
 
         downloadDir.setText(config.getProperty(Sharer.DOWNLOAD_DIRECTORY));
+        uploadRate.setText(config.getProperty(Sharer.UPLOAD_RATE, "0"));
+        downloadRate.setText(config.getProperty(Sharer.DOWNLOAD_RATE, "0"));
+        peerUploadRate.setText(config.getProperty(Sharer.PEER_UPLOAD_RATE, "0"));
+        peerDownloadRate.setText(config.getProperty(Sharer.PEER_DOWNLOAD_RATE, "0"));
+    }
+
+    private void setRate(Properties config, String key, String value) {
+        try {
+            if (Long.parseLong(value.trim()) >= 0) {
+                config.setProperty(key, value.trim());
+                return;
+            }
+        } catch (NumberFormatException e) {
+            // logged below
+        }
+        log.warning("Could not save bandwidth limit '" + key + "': '" + value + "'");
     }
 }
@@ -16,7 +16,6 @@
 
 package ui.controller;
 
-import data.Chunk;
 import data.FileMetadata;
 import data.SharedFile;
 import local.ServiceLocator;
@@ -47,7 +46,7 @@ public class ChunkDownloadProgressController implements Observer<FileMetadata> {
 
         // open dialog for shared file(one for each fileId), if not exist
         if (progressDialog == null) {
-            progressDialog = new ProgressDialog(TITLE, data.getFileName(), Chunk.getChunkCount(data.getFileSize()));
+            progressDialog = new ProgressDialog(TITLE, data.getFileName(), data.getChunkCount());
             progressDialog.setVisible(true);
         }
 
@@ -16,12 +16,14 @@
 
 package ui.controller;
 
+import data.FilePriority;
 import data.SharedFile;
 import local.ServiceLocator;
 import local.SharedFileService;
 import local.decl.AddFileListener;
 import local.decl.NodeStateListener;
 import main.Sharer;
+import net.ShareService;
 import net.data.Node;
 import persistence.ConfigFileHandler;
 import persistence.SharedFileHandler;
@@ -30,6 +32,7 @@ import javax.swing.*;
 import javax.swing.text.BadLocationException;
 import javax.swing.text.Document;
 import java.io.IOException;
+import java.util.Collection;
 import java.util.HashMap;
 import java.util.List;
 import java.util.Map;
@@ -45,6 +48,11 @@ public class OverviewController implements AddFileListener, NodeStateListener {
     public static final String STAT_FILES_DOWNLOADED = "STAT_FILES_DOWNLOADED";
     public static final String STAT_CHUNKS_WITH_CHECKSUM = "STAT_CHUNKS_WITH_CHECKSUM";
     public static final String STAT_SHARED_FILES_WITH_CHECKSUM = "STAT_SHARED_FILES_WITH_CHECKSUM";
+    public static final String STAT_CACHE_HITS = "STAT_CACHE_HITS";
+    public static final String STAT_CACHE_MISSES = "STAT_CACHE_MISSES";
+    public static final String STAT_DOWNLOAD_LIMIT = "STAT_DOWNLOAD_LIMIT";
+    public static final String STAT_DOWNLOAD_LIMIT_HISTORY = "STAT_DOWNLOAD_LIMIT_HISTORY";
+    public static final String STAT_DOWNLOAD_GOODPUT = "STAT_DOWNLOAD_GOODPUT";
 
     private static final SharedFileService SHARED_FILE_SERVICE = (SharedFileService) ServiceLocator.getInstance().getService(ServiceLocator.SHARED_FILE_SERVICE);
 
@@ -65,6 +73,11 @@ public class OverviewController implements AddFileListener, NodeStateListener {
         sharer_statistics.put(STAT_FILES_DOWNLOADED, new JTextField().getDocument());
         sharer_statistics.put(STAT_CHUNKS_WITH_CHECKSUM, new JTextField().getDocument());
         sharer_statistics.put(STAT_SHARED_FILES_WITH_CHECKSUM, new JTextField().getDocument());
+        sharer_statistics.put(STAT_CACHE_HITS, new JTextField().getDocument());
+        sharer_statistics.put(STAT_CACHE_MISSES, new JTextField().getDocument());
+        sharer_statistics.put(STAT_DOWNLOAD_LIMIT, new JTextField().getDocument());
+        sharer_statistics.put(STAT_DOWNLOAD_LIMIT_HISTORY, new JTextField().getDocument());
+        sharer_statistics.put(STAT_DOWNLOAD_GOODPUT, new JTextField().getDocument());
     }
 
     public static OverviewController getInstance() {
@@ -172,7 +185,7 @@ public class OverviewController implements AddFileListener, NodeStateListener {
     public void addNode(Node node) {
         SwingUtilities.invokeLater(() -> {
             for (String ip : node.getIps()) {
-                if (NODE_LIST_MODEL.contains(ip)) {
+                if (indexOfNode(ip) >= 0) {
                     return;
                 }
                 NODE_LIST_MODEL.addElement(ip);
@@ -184,8 +197,69 @@ public class OverviewController implements AddFileListener, NodeStateListener {
     public void removeNode(Node node) {
         SwingUtilities.invokeLater(() -> {
             for (String ip : node.getIps()) {
-                NODE_LIST_MODEL.removeElement(ip);
+                int i = indexOfNode(ip);
+                if (i >= 0) {
+                    NODE_LIST_MODEL.remove(i);
+                }
             }
         });
     }
+
+    public void setFilePriority(String filePath, FilePriority priority) {
+        SharedFile sharedFile = getFileByPath(filePath);
+        if (sharedFile != null) {
+            getShareService().setFilePriority(sharedFile.getFileId(), priority);
+        }
+    }
+
+    public void setSequential(String filePath, boolean sequential) {
+        SharedFile sharedFile = getFileByPath(filePath);
+        if (sharedFile != null) {
+            getShareService().setSequential(sharedFile.getFileId(), sequential);
+        }
+    }
+
+    public boolean isSequential(String filePath) {
+        SharedFile sharedFile = getFileByPath(filePath);
+        return sharedFile != null && sharedFile.isSequential();
+    }
+
+    private SharedFile getFileByPath(String filePath) {
+        if (filePath == null) {
+            return null;
+        }
+        return SHARED_FILE_SERVICE.getAll().values().stream()
+            .filter(sf -> filePath.equals(sf.getFilePath()))
+            .findFirst().orElse(null);
+    }
+
+    private ShareService getShareService() {
+        // share service registers with this controller, look it up on use
+        return (ShareService) ServiceLocator.getInstance().getService(ServiceLocator.SHARE_SERVICE);
+    }
+
+    /**
+     * Shows the transfer scores next to the IPs of the nodes
+     */
+    public void updateNodeScores(Collection<Node> nodes) {
+        SwingUtilities.invokeLater(() -> nodes.forEach(node -> {
+            String score = node.getScore() + ", " + node.getRtt();
+            for (String ip : node.getIps()) {
+                int i = indexOfNode(ip);
+                if (i >= 0) {
+                    NODE_LIST_MODEL.set(i, ip + " (" + score + ")");
+                }
+            }
+        }));
+    }
+
+    private int indexOfNode(String ip) {
+        for (int i = 0; i < NODE_LIST_MODEL.size(); i++) {
+            String entry = NODE_LIST_MODEL.get(i);
+            if (entry.equals(ip) || entry.startsWith(ip + " (")) {
+                return i;
+            }
+        }
+        return -1;
+    }
 }